@@ -0,0 +1,337 @@
+package games.play4ever.retrodev.hatari;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Watches the GEMDOS drive "C:" of an emulator for files written by the emulated program, see
+ * {@link HatariSession#getDriveWatcher()}. The watcher uses the file system notifications of the
+ * host ({@link WatchService}), so it reacts within milliseconds without polling the folder, and
+ * also watches all sub-folders, including the ones created while it runs.
+ * <p></p>
+ * For every file, the listeners receive a {@link Type#created} event, {@link Type#modified} events
+ * while it is written, and a {@link Type#stable} event once it has not been modified for the quiet
+ * time: As there is no notification for a file being closed, this is the moment when the program
+ * is considered done writing it.
+ * <p></p>
+ * NOTE: On platforms without native file system notifications (e.g. macOS), the JDK falls back to
+ * polling the folders, which delays the events by a few seconds.
+ *
+ * @author Marcel Schoen
+ */
+public class DriveWatcher implements AutoCloseable {
+
+    /**
+     * Default time a file must not be modified to be considered stable.
+     */
+    public static final long DEFAULT_QUIET_MILLIS = 500;
+
+    /**
+     * Type of a file event.
+     */
+    public enum Type {
+        /** The file has been created. */
+        created,
+        /** The file has been written to. */
+        modified,
+        /** The file has not been modified for the quiet time, it is completely written. */
+        stable
+    }
+
+    /**
+     * Event about a file in drive "C:".
+     */
+    public static final class Event {
+        private final Type type;
+        private final String path;
+        private final File file;
+
+        private Event(Type type, String path, File file) {
+            this.type = type;
+            this.path = path;
+            this.file = file;
+        }
+
+        /**
+         * @return The type of the event.
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return The path of the file, relative to drive "C:", with "/" as separator (e.g. "OUT/RESULT.TXT").
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return The file on the host.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + path;
+        }
+    }
+
+    private final Path root;
+    private final String name;
+    private final long quietMillis;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final Map<Path, ScheduledFuture<?>> pendingChecks = new ConcurrentHashMap<>();
+    private final List<Consumer<Event>> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Starts watching the given drive folder.
+     *
+     * @param driveC      The folder of drive "C:".
+     * @param name        The name of the watcher (used for its thread and in messages).
+     * @param quietMillis The time a file must not be modified to be considered stable.
+     */
+    DriveWatcher(File driveC, String name, long quietMillis) {
+        this.root = driveC.toPath().toAbsolutePath();
+        this.name = name;
+        this.quietMillis = quietMillis;
+        try {
+            this.watchService = root.getFileSystem().newWatchService();
+            registerAll(root, null);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to watch drive C: of Hatari instance " + name + ": " + e, e);
+        }
+        Thread thread = new Thread(this::processEvents, "hatari-watcher-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The time a file must not be modified to be considered stable, in milliseconds.
+     */
+    public long getQuietMillis() {
+        return quietMillis;
+    }
+
+    /**
+     * Adds a listener which receives all file events. Listeners are called from background threads.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(Consumer<Event> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeListener(Consumer<Event> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns a future which completes once the given file exists (it may not be completely written yet).
+     *
+     * @param path The path of the file, relative to drive "C:" (e.g. "OUT/READY.TXT").
+     * @return Future completing with the file.
+     */
+    public CompletableFuture<File> awaitFile(String path) {
+        return await(path, false);
+    }
+
+    /**
+     * Returns a future which completes once the given file exists and has not been modified for
+     * the quiet time. For a file which exists already, this is the case after the quiet time.
+     *
+     * @param path The path of the file, relative to drive "C:" (e.g. "OUT/RESULT.TXT").
+     * @return Future completing with the file.
+     */
+    public CompletableFuture<File> awaitStableFile(String path) {
+        return await(path, true);
+    }
+
+    /**
+     * @return True if the watcher has been closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops watching. Futures of files which haven't appeared yet never complete.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        pendingChecks.values().forEach(check -> check.cancel(false));
+        pendingChecks.clear();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            System.out.println(">> Failed to stop watching drive C: of Hatari instance " + name + ": " + e);
+        }
+    }
+
+    private CompletableFuture<File> await(String path, boolean stable) {
+        String expected = path.replace('\\', '/');
+        File file = root.resolve(expected).toFile();
+        CompletableFuture<File> result = new CompletableFuture<>();
+        Consumer<Event> listener = event -> {
+            if (event.path.equalsIgnoreCase(expected) && (!stable || event.type == Type.stable)) {
+                result.complete(event.file);
+            }
+        };
+        listeners.add(listener);
+        result.whenComplete((f, e) -> listeners.remove(listener));
+        // The file may have been written before the listener was registered
+        if (file.isFile()) {
+            if (stable) {
+                scheduleStableCheck(file.toPath());
+            } else {
+                result.complete(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Registers the given folder and all its sub-folders. For folders created while watching,
+     * the files they already contain are reported, as they were created before the registration.
+     *
+     * @param reportType The type of the events to report for the files found, or null to report none.
+     */
+    private void registerAll(Path directory, Type reportType) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (Files.isDirectory(path)) {
+                    WatchKey key = path.register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE);
+                    directories.put(key, path);
+                } else if (reportType != null) {
+                    fileChanged(path, reportType);
+                }
+            }
+        }
+    }
+
+    private void processEvents() {
+        try {
+            while (!closed) {
+                WatchKey key = watchService.take();
+                Path directory = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost, check all files and folders again
+                        rescan();
+                        continue;
+                    }
+                    if (directory == null) {
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        ScheduledFuture<?> check = pendingChecks.remove(path);
+                        if (check != null) {
+                            check.cancel(false);
+                        }
+                    } else if (Files.isDirectory(path)) {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            try {
+                                registerAll(path, Type.created);
+                            } catch (IOException e) {
+                                System.out.println(">> Failed to watch " + path + " of Hatari instance " + name + ": " + e);
+                            }
+                        }
+                    } else {
+                        fileChanged(path, event.kind() == StandardWatchEventKinds.ENTRY_CREATE ? Type.created : Type.modified);
+                    }
+                }
+                if (!key.reset()) {
+                    directories.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Watcher closed
+        }
+    }
+
+    /**
+     * Registers all folders again and reports all files as modified, after the host dropped events.
+     * Files which did not change just become stable again after the quiet time.
+     */
+    private void rescan() {
+        try {
+            registerAll(root, Type.modified);
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println(">> Failed to rescan drive C: of Hatari instance " + name + ": " + e);
+        }
+    }
+
+    /**
+     * Reports a change of the given file, and (re-)starts the quiet time after which it is reported as stable.
+     */
+    private void fileChanged(Path path, Type type) {
+        fireEvent(type, path);
+        scheduleStableCheck(path);
+    }
+
+    private void scheduleStableCheck(Path path) {
+        if (closed) {
+            return;
+        }
+        File file = path.toFile();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        ScheduledFuture<?>[] check = new ScheduledFuture<?>[1];
+        check[0] = HatariSession.SCHEDULER.schedule(() -> {
+            if (!file.isFile()) {
+                pendingChecks.remove(path, check[0]);
+            } else if (file.length() != length || file.lastModified() != lastModified) {
+                // Changed without a notification (e.g. events lost), wait again
+                scheduleStableCheck(path);
+            } else if (pendingChecks.remove(path, check[0])) {
+                fireEvent(Type.stable, path);
+            }
+        }, quietMillis, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> previous = pendingChecks.put(path, check[0]);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    private void fireEvent(Type type, Path path) {
+        Event event = new Event(type, root.relativize(path).toString().replace(File.separatorChar, '/'), path.toFile());
+        for (Consumer<Event> listener : listeners) {
+            try {
+                listener.accept(event);
+            } catch (RuntimeException e) {
+                System.out.println(">> Drive listener of Hatari instance " + name + " failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package games.play4ever.retrodev.hatari;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Runs {@link HatariJob}s in parallel, each in a freshly started emulator (see
+ * {@link HatariRuntime#run(HatariJob, File)}). By default, as many emulators run at
+ * the same time as the host has processor cores; further jobs wait in a queue. The
+ * expected files of every job are collected into the result directory
+ * ("&lt;result directory&gt;/&lt;job name&gt;/...").
+ * <p></p>
+ * Usage:
+ * <pre>
+ * HatariWrapper.prepare(new File("./hatari"), TOS.tos206);
+ * try (HatariBatch batch = new HatariBatch(HatariWrapper.getRuntime())) {
+ *     List&lt;HatariJobResult&gt; results = batch.runAll(jobs);
+ *     System.out.println(HatariBatch.getReport(results));
+ * }
+ * </pre>
+ *
+ * @author Marcel Schoen
+ */
+public class HatariBatch implements AutoCloseable {
+
+    private final HatariRuntime runtime;
+
+    private final ExecutorService executor;
+
+    private volatile File resultDirectory;
+
+    /**
+     * Creates a batch which runs one emulator per processor core at a time.
+     *
+     * @param runtime The runtime which runs the emulators (must be prepared).
+     */
+    public HatariBatch(HatariRuntime runtime) {
+        this(runtime, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a batch.
+     *
+     * @param runtime     The runtime which runs the emulators (must be prepared).
+     * @param parallelism The maximum number of emulators running at the same time.
+     */
+    public HatariBatch(HatariRuntime runtime, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Invalid parallelism: " + parallelism);
+        }
+        this.runtime = runtime;
+        this.resultDirectory = new File(runtime.getWorkDirectory(), "results");
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "hatari-batch-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets the directory into which the result files of the jobs are collected.
+     * By default, the folder "results" in the work directory of the runtime.
+     *
+     * @param directory The result directory.
+     */
+    public void setResultDirectory(File directory) {
+        this.resultDirectory = directory;
+    }
+
+    /**
+     * @return The directory into which the result files of the jobs are collected.
+     */
+    public File getResultDirectory() {
+        return resultDirectory;
+    }
+
+    /**
+     * Queues the given job.
+     *
+     * @param job The job to run.
+     * @return Future which completes with the result of the job (it never completes exceptionally).
+     */
+    public CompletableFuture<HatariJobResult> submit(HatariJob job) {
+        QueuedJob queued = new QueuedJob(job);
+        try {
+            executor.execute(queued);
+        } catch (RejectedExecutionException e) {
+            queued.cancel();
+        }
+        return queued.result;
+    }
+
+    /**
+     * Runs the given jobs and waits for all of them to finish.
+     *
+     * @param jobs The jobs to run.
+     * @return The results, in the order of the jobs.
+     */
+    public List<HatariJobResult> runAll(Collection<HatariJob> jobs) {
+        List<CompletableFuture<HatariJobResult>> results = jobs.stream()
+                .map(this::submit)
+                .collect(Collectors.toList());
+        return results.stream()
+                .map(CompletableFuture::join)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Stops running jobs and discards queued ones. Their results are completed with
+     * the status {@link HatariJobResult.Status#failed}.
+     */
+    @Override
+    public void close() {
+        for (Runnable dropped : executor.shutdownNow()) {
+            ((QueuedJob) dropped).cancel();
+        }
+    }
+
+    /**
+     * Creates a report of the given job results: one line per job with status and
+     * duration, and a summary line.
+     *
+     * @param results The job results.
+     * @return The report.
+     */
+    public static String getReport(List<HatariJobResult> results) {
+        StringBuilder report = new StringBuilder();
+        results.forEach(result -> report.append(result).append("\n"));
+        long total = results.stream().mapToLong(r -> r.getDuration().toMillis()).sum();
+        report.append(">> ").append(results.size()).append(" job(s): ");
+        for (HatariJobResult.Status status : HatariJobResult.Status.values()) {
+            long count = results.stream().filter(r -> r.getStatus() == status).count();
+            report.append(count).append(" ").append(status.name()).append(", ");
+        }
+        report.append(String.format("%.1f s emulator time", total / 1000.0));
+        return report.toString();
+    }
+
+    /**
+     * A job waiting in the queue of the executor, with the future of its result.
+     */
+    private class QueuedJob implements Runnable {
+        private final HatariJob job;
+        private final CompletableFuture<HatariJobResult> result = new CompletableFuture<>();
+
+        private QueuedJob(HatariJob job) {
+            this.job = job;
+        }
+
+        @Override
+        public void run() {
+            result.complete(runtime.run(job, resultDirectory));
+        }
+
+        private void cancel() {
+            result.complete(new HatariJobResult(job, HatariJobResult.Status.failed, Duration.ZERO,
+                    Collections.emptyList(), null, OptionalInt.empty(), "cancelled, batch closed"));
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package games.play4ever.retrodev.hatari;
+
+import games.play4ever.retrodev.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Generates the Hatari configuration files ("*.cfg") for emulator instances. The file of
+ * an instance contains the settings which the wrapper always uses (e.g. no confirmation
+ * dialog when quitting), and all additional settings of the instance, see
+ * {@link HatariInstance#getOptions()}. The emulator is launched with "--configfile",
+ * while the settings modelled by {@link HatariInstance} are still passed on the commandline
+ * (and therefore take precedence).
+ * <p></p>
+ * Every file is named after the hash of its contents, and written only once, so all
+ * instances with the same configuration share the same file, across runs and JVMs.
+ *
+ * @author Marcel Schoen
+ */
+public class HatariConfigCache {
+
+    private final File directory;
+
+    /**
+     * Generated files, by configuration hash of the instance.
+     */
+    private final Map<String, File> configFiles = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a configuration cache in the given directory (will be created).
+     *
+     * @param directory The cache directory.
+     */
+    public HatariConfigCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The cache directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the configuration file for the given instance, writing it if necessary.
+     *
+     * @param instance The emulator instance.
+     * @return The configuration file.
+     */
+    public File getConfigFile(HatariInstance instance) {
+        return configFiles.computeIfAbsent(instance.getConfigurationHash(), hash -> writeConfigFile(instance));
+    }
+
+    /**
+     * Returns the contents of the configuration file for the given instance.
+     *
+     * @param instance The emulator instance.
+     * @return The configuration file contents.
+     */
+    public static String getConfiguration(HatariInstance instance) {
+        Map<String, Map<String, String>> sections = new TreeMap<>();
+        // Allow to stop the emulator gracefully, without a confirmation dialog
+        sections.computeIfAbsent("Log", s -> new TreeMap<>()).put("bConfirmQuit", "FALSE");
+        instance.getOptions().forEach((section, values) ->
+                sections.computeIfAbsent(section, s -> new TreeMap<>()).putAll(values));
+
+        StringBuilder config = new StringBuilder();
+        config.append("# Generated by java-hatari-wrapper for: ").append(instance.getConfigurationKey()).append("\n");
+        sections.forEach((section, values) -> {
+            config.append("\n[").append(section).append("]\n");
+            values.forEach((key, value) -> config.append(key).append(" = ").append(value).append("\n"));
+        });
+        return config.toString();
+    }
+
+    private File writeConfigFile(HatariInstance instance) {
+        String config = getConfiguration(instance);
+        File configFile = new File(directory, FileUtil.sha256(config) + ".cfg");
+        if (configFile.isFile()) {
+            return configFile;
+        }
+        try {
+            directory.mkdirs();
+            File tempFile = File.createTempFile("hatari", ".tmp", directory);
+            try {
+                Files.write(tempFile.toPath(), config.getBytes(StandardCharsets.UTF_8));
+                Files.move(tempFile.toPath(), configFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write Hatari configuration " + configFile + ": " + e, e);
+        }
+        return configFile;
+    }
+}
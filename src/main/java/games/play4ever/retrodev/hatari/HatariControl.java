@@ -0,0 +1,333 @@
+package games.play4ever.retrodev.hatari;
+
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+
+import games.play4ever.retrodev.util.PlatformUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client for the remote control interface of a running Hatari emulator. Allows to
+ * send key presses, shortcuts, pause / resume etc. directly to the emulator, without
+ * having to bring its window into the foreground and typing on the host keyboard.
+ * <p></p>
+ * Hatari is launched with its command FIFO ("--cmd-fifo"), which accepts the same
+ * commands as its control socket. All methods are asynchronous: commands are queued
+ * and written to the emulator by a background thread. Commands which pile up while
+ * the previous ones are being written are sent in one go (pipelining). The returned
+ * futures complete once the command has been handed over to the emulator.
+ * <p></p>
+ * NOTE: The command FIFO is not available on Windows.
+ * <p></p>
+ * Usage:
+ * <pre>
+ * HatariControl control = HatariWrapper.getControl(instance);
+ * control.typeText("GFABASIC.PRG\n");
+ * control.setFastForward(true);
+ * </pre>
+ *
+ * @author Marcel Schoen
+ */
+public class HatariControl implements AutoCloseable {
+
+    /**
+     * Flags for opening the command FIFO with the C library, without blocking.
+     */
+    private static final int O_RDONLY = 0;
+    private static final int O_WRONLY = 1;
+    private static final int O_NONBLOCK =
+            PlatformUtil.getOperatingSystemType() == PlatformUtil.OSType.MacOS ? 0x0004 : 0x0800;
+
+    private final File fifo;
+
+    private final BlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+
+    private final Thread writer;
+
+    private final CompletableFuture<Void> connected = new CompletableFuture<>();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a control client for the given Hatari command FIFO. The FIFO is
+     * created by the emulator; the client waits for it to appear before sending.
+     *
+     * @param fifo The command FIFO of the emulator.
+     */
+    HatariControl(File fifo) {
+        this.fifo = fifo;
+        this.writer = new Thread(this::writeCommands, "hatari-control-" + fifo.getParentFile().getName());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Returns a future which completes as soon as the emulator has opened its end of
+     * the command FIFO, meaning that it is up and running and accepts commands.
+     *
+     * @return Future which completes when the emulator is connected.
+     */
+    public CompletableFuture<Void> connected() {
+        return connected;
+    }
+
+    /**
+     * Sends a raw Hatari control command, such as "hatari-shortcut coldreset".
+     *
+     * @param command The control command.
+     * @return Future which completes when the command was sent.
+     */
+    public CompletableFuture<Void> send(String command) {
+        Command entry = new Command(command);
+        if (closed) {
+            entry.result.completeExceptionally(new IllegalStateException("Emulator control is closed"));
+        } else {
+            queue.add(entry);
+            // Closed while adding: the pending commands may already have been failed
+            if (closed && queue.remove(entry)) {
+                entry.result.completeExceptionally(new IllegalStateException("Emulator control is closed"));
+            }
+        }
+        return entry.result;
+    }
+
+    /**
+     * Presses and releases a key in the emulator.
+     *
+     * @param key The key, either as SDL key name (e.g. "a", "Return", "Space") or as numeric ST scancode.
+     * @return Future which completes when the command was sent.
+     */
+    public CompletableFuture<Void> pressKey(String key) {
+        return send("hatari-event keypress " + key);
+    }
+
+    /**
+     * Presses a key in the emulator, without releasing it.
+     *
+     * @param key The key, either as SDL key name or as numeric ST scancode.
+     * @return Future which completes when the command was sent.
+     */
+    public CompletableFuture<Void> keyDown(String key) {
+        return send("hatari-event keydown " + key);
+    }
+
+    /**
+     * Releases a key in the emulator.
+     *
+     * @param key The key, either as SDL key name or as numeric ST scancode.
+     * @return Future which completes when the command was sent.
+     */
+    public CompletableFuture<Void> keyUp(String key) {
+        return send("hatari-event keyup " + key);
+    }
+
+    /**
+     * Presses the given keys together, like a key combination on the keyboard
+     * (e.g. "Left Ctrl" and "c"), and then releases all of them.
+     *
+     * @param keys The keys, either as SDL key names or as numeric ST scancodes.
+     * @return Future which completes when all commands were sent.
+     */
+    public CompletableFuture<Void> pressKeysTogether(String... keys) {
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (String key : keys) {
+            results.add(keyDown(key));
+        }
+        for (String key : keys) {
+            results.add(keyUp(key));
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Types the given text in the emulator, one key press per character.
+     * Newlines are sent as "Return".
+     *
+     * @param text The text to type.
+     * @return Future which completes when all key presses were sent.
+     */
+    public CompletableFuture<Void> typeText(String text) {
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (char c : text.toCharArray()) {
+            if (c == '\n') {
+                results.add(pressKey("Return"));
+            } else if (c == ' ') {
+                results.add(pressKey("Space"));
+            } else if (c != '\r') {
+                results.add(pressKey(String.valueOf(c)));
+            }
+        }
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Invokes a Hatari shortcut, such as "coldreset", "warmreset", "screenshot",
+     * "savemem", "loadmem" or "quit".
+     *
+     * @param shortcut The name of the shortcut.
+     * @return Future which completes when the command was sent.
+     */
+    public CompletableFuture<Void> shortcut(String shortcut) {
+        return send("hatari-shortcut " + shortcut);
+    }
+
+    /**
+     * Pauses the emulation.
+     *
+     * @return Future which completes when the command was sent.
+     */
+    public CompletableFuture<Void> pause() {
+        return send("hatari-stop");
+    }
+
+    /**
+     * Resumes the emulation after a pause.
+     *
+     * @return Future which completes when the command was sent.
+     */
+    public CompletableFuture<Void> resume() {
+        return send("hatari-cont");
+    }
+
+    /**
+     * Enables or disables the fast-forward mode (running at full host speed).
+     *
+     * @param fastForward True to run at full host speed, false for accurate emulation speed.
+     * @return Future which completes when the command was sent.
+     */
+    public CompletableFuture<Void> setFastForward(boolean fastForward) {
+        return setOptions("--fast-forward " + fastForward);
+    }
+
+    /**
+     * Changes emulator options at runtime, using the same syntax as the commandline.
+     *
+     * @param options The options, e.g. "--sound off".
+     * @return Future which completes when the command was sent.
+     */
+    public CompletableFuture<Void> setOptions(String options) {
+        return send("hatari-option " + options);
+    }
+
+    /**
+     * Executes a command of the Hatari debugger, e.g. "memdump 0x4000 64".
+     * The output of the command ends up in the standard output of the emulator.
+     *
+     * @param command The debugger command.
+     * @return Future which completes when the command was sent.
+     */
+    public CompletableFuture<Void> debug(String command) {
+        return send("hatari-debug " + command);
+    }
+
+    /**
+     * Stops the control client. Commands which were not sent yet are cancelled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        writer.interrupt();
+        failPending(new IllegalStateException("Emulator control is closed"));
+    }
+
+    private void writeCommands() {
+        try (OutputStream out = openFifo()) {
+            if (closed) {
+                throw new InterruptedException();
+            }
+            connected.complete(null);
+            List<Command> batch = new ArrayList<>();
+            while (!closed) {
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                StringBuilder data = new StringBuilder();
+                batch.forEach(command -> data.append(command.command).append('\n'));
+                try {
+                    out.write(data.toString().getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    batch.forEach(command -> command.result.complete(null));
+                } catch (IOException e) {
+                    batch.forEach(command -> command.result.completeExceptionally(e));
+                    throw e;
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // closed
+            connected.cancel(false);
+        } catch (IOException e) {
+            System.out.println(">> Emulator control " + fifo + " failed: " + e);
+            closed = true;
+            connected.completeExceptionally(e);
+            failPending(e);
+        }
+    }
+
+    /**
+     * Waits for the emulator to create its command FIFO and to open it for reading, and opens it.
+     * A plain Java open would block until the emulator opens the FIFO, forever if the emulator
+     * terminates before, and cannot be interrupted. So the FIFO is probed with non-blocking
+     * opens of the C library until the emulator reads it.
+     */
+    private OutputStream openFifo() throws IOException, InterruptedException {
+        String path = fifo.getAbsolutePath();
+        while (true) {
+            if (closed) {
+                throw new InterruptedException();
+            }
+            // Fails (ENXIO) as long as the emulator has not opened the FIFO for reading
+            int probe = fifo.exists() ? CLibrary.INSTANCE.open(path, O_WRONLY | O_NONBLOCK) : -1;
+            if (probe >= 0) {
+                // Hold a read end while opening the stream, so it cannot block even if the emulator just went away
+                int guard = CLibrary.INSTANCE.open(path, O_RDONLY | O_NONBLOCK);
+                try {
+                    return new FileOutputStream(fifo);
+                } finally {
+                    if (guard >= 0) {
+                        CLibrary.INSTANCE.close(guard);
+                    }
+                    CLibrary.INSTANCE.close(probe);
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+    }
+
+    private void failPending(Exception cause) {
+        Command command;
+        while ((command = queue.poll()) != null) {
+            command.result.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * The functions of the C library used to open the command FIFO.
+     */
+    private interface CLibrary extends Library {
+        CLibrary INSTANCE = Native.load("c", CLibrary.class);
+
+        int open(String path, int flags);
+
+        int close(int fd);
+    }
+
+    private static class Command {
+        private final String command;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private Command(String command) {
+            this.command = command;
+        }
+    }
+}
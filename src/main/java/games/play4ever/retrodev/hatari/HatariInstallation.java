@@ -0,0 +1,462 @@
+package games.play4ever.retrodev.hatari;
+
+import games.play4ever.retrodev.util.FileUtil;
+import games.play4ever.retrodev.util.InstallManifest;
+import games.play4ever.retrodev.util.PlatformUtil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipFile;
+
+/**
+ * An installation of the Hatari emulator, either unpacked from the archive bundled with this
+ * wrapper, or installed on the system (see {@link #ofSystem(File)}).
+ * <p></p>
+ * Installations are kept in a cache directory which is shared by all processes of the user:
+ * every bundled archive is unpacked into its own folder, named after the hash of the archive.
+ * The installation is guarded by a file lock, so when several JVMs (e.g. parallel Maven test
+ * forks) start at the same time, only one of them unpacks the emulator while the others wait,
+ * and then all of them use the same files. The emulator files are only read from; all files
+ * written by an emulator instance end up in its {@link HatariSandbox}.
+ * <p></p>
+ * The unpacked files are recorded in a manifest file, which allows to verify an existing
+ * installation quickly. Missing or damaged files are extracted again. When a new archive is
+ * installed, the folders of previous archives for the same platform are removed, unless another
+ * process is just installing into them.
+ * <p></p>
+ * A system installation is probed for its version and its supported commandline options,
+ * by running it with "--version" and "--help". The result is cached in the user's cache
+ * directory (until the executable changes), so probing only happens once. Options which
+ * the system emulator doesn't support are left out when starting it.
+ *
+ * @author Marcel Schoen
+ */
+public class HatariInstallation {
+
+    /**
+     * Name of the manifest file which records the installed emulator files.
+     */
+    static final String INSTALL_MANIFEST = "hatari-manifest.txt";
+
+    /**
+     * Hashes of the bundled emulator archives, by resource path.
+     */
+    private static final Map<String, String> archiveHashes = new ConcurrentHashMap<>();
+
+    /**
+     * File locks are held by the whole JVM, so threads of this JVM must also be kept from
+     * installing at the same time.
+     */
+    private static final Object INSTALL_LOCK = new Object();
+
+    /**
+     * Probe results of system installations, by executable path.
+     */
+    private static final Map<File, HatariInstallation> systemInstallations = new ConcurrentHashMap<>();
+
+    /**
+     * Minimum number of options a successfully parsed help text contains.
+     */
+    private static final int MIN_PROBED_OPTIONS = 20;
+
+    private static final Pattern VERSION_PATTERN = Pattern.compile("Hatari v?(\\d+(\\.\\d+)*)");
+
+    private static final Pattern OPTION_PATTERN = Pattern.compile("^\\s+(?:(-\\w),\\s+)?(--[\\w-]+)");
+
+    private final File directory;
+
+    private final File executable;
+
+    private final String hash;
+
+    private final String version;
+
+    /**
+     * The supported options, or null if all options are supported.
+     */
+    private final Set<String> options;
+
+    private HatariInstallation(File directory, File executable, String hash, String version, Set<String> options) {
+        this.directory = directory;
+        this.executable = executable;
+        this.hash = hash;
+        this.version = version;
+        this.options = options;
+    }
+
+    /**
+     * @return The default cache directory for emulator installations, in the user's cache directory.
+     */
+    public static File getDefaultCacheDirectory() {
+        return new File(PlatformUtil.getUserCacheDirectory(), "emulator");
+    }
+
+    /**
+     * Returns the installation of the emulator bundled for the given platform in the given
+     * cache directory. If the emulator isn't installed there yet (or the installation is
+     * damaged), it is unpacked first.
+     *
+     * @param cacheDirectory The cache directory.
+     * @param osType         The platform whose emulator to install.
+     * @return The installation.
+     * @throws IOException If the emulator could not be installed.
+     */
+    public static HatariInstallation install(File cacheDirectory, PlatformUtil.OSType osType) throws IOException {
+        String archiveHash = getArchiveHash(osType.emulatorArchive);
+        File directory = new File(cacheDirectory, osType.name().toLowerCase() + "-" + archiveHash.substring(0, 16));
+        HatariInstallation installation = new HatariInstallation(directory,
+                new File(directory, osType.emulatorExecutable), archiveHash, null, null);
+
+        // Most of the time, the installation is complete - no need to wait for a lock then
+        InstallManifest installed = InstallManifest.read(new File(directory, INSTALL_MANIFEST));
+        if (installed != null && installed.getArchiveHash().equals(archiveHash)
+                && installed.findDamagedFiles(directory).isEmpty()) {
+            return installation;
+        }
+
+        synchronized (INSTALL_LOCK) {
+            directory.mkdirs();
+            File lockFile = new File(cacheDirectory, directory.getName() + ".lock");
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    System.out.println(">> Waiting for another process to install the emulator in: " + directory);
+                    lock = channel.lock();
+                }
+                try {
+                    // Check again, the other process may just have completed the installation
+                    installEmulator(directory, osType, archiveHash);
+                    removeOtherInstallations(cacheDirectory, osType, directory);
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+        return installation;
+    }
+
+    /**
+     * Returns the installation of a Hatari emulator which is installed on the system. The
+     * executable is probed for its version and supported options once; the result is cached.
+     *
+     * @param executable The Hatari executable.
+     * @return The installation.
+     * @throws IOException If the executable doesn't exist or could not be probed.
+     */
+    public static HatariInstallation ofSystem(File executable) throws IOException {
+        File exe = executable.getAbsoluteFile();
+        if (!exe.isFile() || !exe.canExecute()) {
+            throw new IOException("Hatari executable not found: " + exe);
+        }
+        HatariInstallation installation = systemInstallations.get(exe);
+        if (installation == null) {
+            installation = probe(exe);
+            systemInstallations.put(exe, installation);
+        }
+        return installation;
+    }
+
+    /**
+     * Searches the directories of the "PATH" environment variable for the Hatari executable.
+     *
+     * @return The Hatari executable, or null if none was found.
+     */
+    public static File findOnPath() {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return null;
+        }
+        String name = PlatformUtil.getOperatingSystemType() == PlatformUtil.OSType.Windows ? "hatari.exe" : "hatari";
+        for (String folder : path.split(File.pathSeparator)) {
+            File candidate = new File(folder, name);
+            if (candidate.isFile() && candidate.canExecute()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The installation directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return The emulator executable.
+     */
+    public File getExecutable() {
+        return executable;
+    }
+
+    /**
+     * @return The SHA-256 hash of the emulator archive this installation was unpacked
+     * from, or of the executable of a system installation.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return The version of a system installation (e.g. "2.4.1"), or null for
+     * the bundled emulator or if the version could not be determined.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return True if this is the emulator bundled with this wrapper.
+     */
+    public boolean isBundled() {
+        return version == null;
+    }
+
+    /**
+     * Checks if the emulator supports the given commandline option.
+     *
+     * @param option The option, e.g. "--fast-boot".
+     * @return True if the option is supported (always true for the bundled emulator).
+     */
+    public boolean isOptionSupported(String option) {
+        return options == null || options.contains(option);
+    }
+
+    /**
+     * Removes all options which the emulator doesn't support from the given
+     * arguments, together with their values.
+     *
+     * @param arguments The commandline arguments (without executable).
+     * @return The supported arguments.
+     */
+    List<String> filterArguments(List<String> arguments) {
+        if (options == null) {
+            return arguments;
+        }
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < arguments.size(); i++) {
+            String argument = arguments.get(i);
+            if (argument.startsWith("-") && !options.contains(argument)) {
+                System.out.println(">> Option " + argument + " not supported by Hatari " + version + ", skipped");
+                // None of the option values start with a dash
+                while (i + 1 < arguments.size() && !arguments.get(i + 1).startsWith("-")) {
+                    i++;
+                }
+            } else {
+                result.add(argument);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return executable.getAbsolutePath() + (version != null ? " (Hatari " + version + ")" : "");
+    }
+
+    /**
+     * Probes a system emulator, or reads the result of an earlier probe from the cache.
+     * The cache entry is named after the path, size and modification time of the executable.
+     */
+    private static HatariInstallation probe(File exe) throws IOException {
+        File cacheFile = new File(PlatformUtil.getUserCacheDirectory(), "probes/"
+                + FileUtil.sha256(exe.getPath() + "|" + exe.length() + "|" + exe.lastModified()) + ".properties");
+        Properties probe = new Properties();
+        if (cacheFile.isFile()) {
+            try (InputStream in = new FileInputStream(cacheFile)) {
+                probe.load(in);
+            }
+        } else {
+            System.out.println(">> Probe Hatari executable: " + exe);
+            probe.setProperty("hash", FileUtil.sha256(exe));
+            Matcher versionMatcher = VERSION_PATTERN.matcher(run(exe, "--version"));
+            probe.setProperty("version", versionMatcher.find() ? versionMatcher.group(1) : "unknown");
+            Set<String> probedOptions = new TreeSet<>();
+            for (String line : run(exe, "--help").split("\\R")) {
+                Matcher optionMatcher = OPTION_PATTERN.matcher(line);
+                if (optionMatcher.find()) {
+                    if (optionMatcher.group(1) != null) {
+                        probedOptions.add(optionMatcher.group(1));
+                    }
+                    probedOptions.add(optionMatcher.group(2));
+                }
+            }
+            // If the help text could not be understood, just pass on all options
+            probe.setProperty("options", probedOptions.size() >= MIN_PROBED_OPTIONS ? String.join(" ", probedOptions) : "");
+            cacheFile.getParentFile().mkdirs();
+            File tempFile = File.createTempFile("probe", ".tmp", cacheFile.getParentFile());
+            try (OutputStream out = new FileOutputStream(tempFile)) {
+                probe.store(out, "Hatari probe of " + exe);
+            }
+            Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        String probedOptions = probe.getProperty("options", "");
+        Set<String> options = probedOptions.isEmpty() ? null
+                : Collections.unmodifiableSet(new HashSet<>(Arrays.asList(probedOptions.split(" "))));
+        HatariInstallation installation = new HatariInstallation(exe.getParentFile(), exe,
+                probe.getProperty("hash"), probe.getProperty("version", "unknown"), options);
+        System.out.println(">> Using system emulator: " + installation);
+        return installation;
+    }
+
+    /**
+     * Runs the emulator with the given option and returns its output.
+     */
+    private static String run(File exe, String option) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(exe.getAbsolutePath(), option);
+        pb.redirectErrorStream(true);
+        pb.environment().put("SDL_VIDEODRIVER", "dummy");
+        pb.environment().put("SDL_AUDIODRIVER", "dummy");
+        Process process = pb.start();
+        try {
+            process.getOutputStream().close();
+            byte[] output = process.getInputStream().readAllBytes();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                throw new IOException("Hatari " + option + " did not terminate");
+            }
+            return new String(output, StandardCharsets.UTF_8);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while probing " + exe);
+        } finally {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Installs the Hatari emulator into the given directory, or verifies
+     * and repairs an existing installation using its manifest.
+     *
+     * @param installDir  The target directory.
+     * @param osType      The platform whose emulator archive to install.
+     * @param archiveHash The hash of the emulator archive.
+     * @throws IOException If the emulator could not be extracted.
+     */
+    private static void installEmulator(File installDir, PlatformUtil.OSType osType, String archiveHash) throws IOException {
+        File manifestFile = new File(installDir, INSTALL_MANIFEST);
+        InstallManifest installed = InstallManifest.read(manifestFile);
+        File hatariExe = new File(installDir, osType.emulatorExecutable);
+        if (installed != null && installed.getArchiveHash().equals(archiveHash)) {
+            List<String> damaged = installed.findDamagedFiles(installDir);
+            if (damaged.isEmpty()) {
+                if (installed.isModified()) {
+                    installed.write(manifestFile);
+                }
+                hatariExe.setExecutable(true);
+                return;
+            }
+            System.out.println(">> Repair " + damaged.size() + " missing or damaged emulator file(s) in: " + installDir);
+        } else {
+            System.out.println(">> Unpack emulator " + osType.emulatorArchive + " to: " + installDir);
+        }
+
+        File archiveFile = File.createTempFile("hatari-", ".zip", installDir);
+        try {
+            try (InputStream resourceStream = HatariInstallation.class.getResourceAsStream(osType.emulatorArchive)) {
+                Files.copy(resourceStream, archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (ZipFile archive = new ZipFile(archiveFile)) {
+                InstallManifest manifest = InstallManifest.fromArchive(archive, archiveHash);
+                // The bundled TOS image is not used, TOS images come from the TOS store
+                manifest.remove("tos.img");
+                // Files which are unknown, or whose recorded time differs, are checked by their checksum
+                List<String> extract = manifest.findDamagedFiles(installDir);
+                List<File> files = FileUtil.unpackZipEntries(archive, extract, installDir);
+                for (int i = 0; i < extract.size(); i++) {
+                    manifest.recordInstalled(extract.get(i), files.get(i));
+                }
+                // Make Hatari executable... executable!
+                hatariExe.setExecutable(true);
+                manifest.write(manifestFile);
+                System.out.println(">> Extracted " + extract.size() + " emulator file(s) to: " + installDir);
+            }
+        } finally {
+            archiveFile.delete();
+        }
+    }
+
+    /**
+     * Removes the installations of other (previous) emulator archives of the given platform from
+     * the cache directory. Installations whose lock is held by another process are kept.
+     *
+     * @param cacheDirectory The cache directory.
+     * @param osType         The platform of the installation.
+     * @param current        The directory of the current installation, which is kept.
+     */
+    private static void removeOtherInstallations(File cacheDirectory, PlatformUtil.OSType osType, File current) {
+        String prefix = osType.name().toLowerCase() + "-";
+        File[] directories = cacheDirectory.listFiles(file -> file.isDirectory()
+                && file.getName().startsWith(prefix) && !file.equals(current));
+        if (directories == null) {
+            return;
+        }
+        for (File directory : directories) {
+            File lockFile = new File(cacheDirectory, directory.getName() + ".lock");
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    continue;
+                }
+                try {
+                    System.out.println(">> Remove previous emulator installation: " + directory);
+                    FileUtil.deleteDir(directory);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                System.out.println(">> Failed to remove previous emulator installation " + directory + ": " + e);
+                continue;
+            }
+            lockFile.delete();
+        }
+    }
+
+    /**
+     * Returns the SHA-256 hash of a bundled emulator archive. The hash is
+     * calculated only once per JVM for each archive.
+     *
+     * @param resource The resource path of the archive.
+     * @return The hash of the archive.
+     * @throws IOException If the archive could not be read.
+     */
+    private static String getArchiveHash(String resource) throws IOException {
+        String hash = archiveHashes.get(resource);
+        if (hash == null) {
+            try (InputStream resourceStream = HatariInstallation.class.getResourceAsStream(resource)) {
+                if (resourceStream == null) {
+                    throw new IOException("Emulator archive not found: " + resource);
+                }
+                hash = FileUtil.sha256(resourceStream);
+            }
+            archiveHashes.put(resource, hash);
+        }
+        return hash;
+    }
+}
@@ -1,8 +1,13 @@
 package games.play4ever.retrodev.hatari;
 
-import java.io.File;
+import games.play4ever.retrodev.util.FileUtil;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 
 /**
  * Defines the configuration / runtime settings for a
@@ -18,6 +23,10 @@ import java.util.List;
  * <li></li>status bar enabled: yes</li>
  * <li></li>fast boot enabled: yes</li>
  * <li></li>full speed enabled: false</li>
+ * <li></li>headless: false</li>
+ * <li></li>console output: false</li>
+ * <li></li>performance profile: balanced</li>
+ * <li></li>log level: debug</li>
  * </ul>
  * <p>
  * Basically the system most likely used for running / testing games.
@@ -30,30 +39,65 @@ import java.util.List;
  * <li></li>sound enabled: no</li>
  * <li></li>full speed enabled: true</li>
  * </ul>
+ * <p>
+ * Batch runs which only care about the output of a program are best run with the
+ * {@link PerformanceProfile#throughput} profile.
+ * <p>
+ * Instances are immutable values: two instances with the same label and settings are
+ * equal, and denote the same emulator (e.g. when stopping it). Modified copies are
+ * created with a {@link Builder}:
+ * <pre>
+ * HatariInstance tools = HatariInstance.builder("tools")
+ *         .memory(Memory.mb4)
+ *         .mode(ScreenMode.high)
+ *         .useSound(false)
+ *         .build();
+ * HatariInstance headlessTools = tools.toBuilder().headless(true).build();
+ * </pre>
+ * Settings of Hatari which are not modelled by this class can be set with
+ * {@link Builder#option(String, String, String)}; they are written into a Hatari
+ * configuration file (see {@link HatariConfigCache}).
  *
  * @author Marcel Schoen
  */
-public class HatariInstance {
+public final class HatariInstance {
+
+    private final String label;
+
+    private final boolean windowed;
+    private final boolean fullSpeed;
+    private final boolean fastBoot;
+    private final boolean useBlitter;
+    private final boolean useSound;
+    private final boolean useStatusBar;
+    private final boolean headless;
+    private final boolean consoleOutput;
+
+    private final MachineType machine;
+    private final TOS tos;
+    private final ScreenMode mode;
+    private final Memory memory;
+    private final LogLevel logLevel;
+    private final PerformanceProfile profile;
 
-    private String label = "hatari";
-
-    private boolean windowed = true;
-    private boolean fullSpeed = false;
-    private boolean fastBoot = false;
-    private boolean useBlitter = true;
-    private boolean useSound = true;
-    private boolean useStatusBar = true;
+    /**
+     * Additional settings for the Hatari configuration file, by section and key.
+     */
+    private final Map<String, Map<String, String>> options;
 
-    private MachineType machine = MachineType.ste;
-    private TOS tos = TOS.tos206;
-    private ScreenMode mode = ScreenMode.low;
-    private Memory memory = Memory.mb1;
+    /**
+     * Values derived from the settings, calculated once.
+     */
+    private final String configurationKey;
+    private final List<String> arguments;
+    private final int hashCode;
+    private volatile String configurationHash;
 
     /**
      * Creates a new instance with the default configuration.
      */
     public HatariInstance(String label) {
-        this.label = label;
+        this(builder(label));
     }
 
     /**
@@ -81,17 +125,89 @@ public class HatariInstance {
                           TOS tos,
                           ScreenMode mode,
                           Memory memory) {
-        this.label = label;
-        this.windowed = windowed;
-        this.fastBoot = fastBoot;
-        this.fullSpeed = fullSpeed;
-        this.useBlitter = useBlitter;
-        this.useSound = useSound;
-        this.useStatusBar = useStatusBar;
-        this.machine = machine;
-        this.tos = tos;
-        this.mode = mode;
-        this.memory = memory;
+        this(builder(label)
+                .windowed(windowed)
+                .fullSpeed(fullSpeed)
+                .fastBoot(fastBoot)
+                .useBlitter(useBlitter)
+                .useSound(useSound)
+                .useStatusBar(useStatusBar)
+                .machine(machine)
+                .tos(tos)
+                .mode(mode)
+                .memory(memory));
+    }
+
+    /**
+     * Creates a new instance with the same configuration as the given one,
+     * but a different label.
+     *
+     * @param label    The label of the new instance.
+     * @param template The instance whose settings are copied.
+     */
+    public HatariInstance(String label, HatariInstance template) {
+        this(template.toBuilder().label(label));
+    }
+
+    private HatariInstance(Builder builder) {
+        this.label = Objects.requireNonNull(builder.label, "label");
+        this.windowed = builder.windowed;
+        this.fullSpeed = builder.fullSpeed;
+        this.fastBoot = builder.fastBoot;
+        this.useBlitter = builder.useBlitter;
+        this.useSound = builder.useSound;
+        this.useStatusBar = builder.useStatusBar;
+        this.headless = builder.headless;
+        this.consoleOutput = builder.consoleOutput;
+        this.machine = Objects.requireNonNull(builder.machine, "machine");
+        this.tos = Objects.requireNonNull(builder.tos, "tos");
+        this.mode = Objects.requireNonNull(builder.mode, "mode");
+        this.memory = Objects.requireNonNull(builder.memory, "memory");
+        this.logLevel = Objects.requireNonNull(builder.logLevel, "logLevel");
+        this.profile = Objects.requireNonNull(builder.profile, "profile");
+        this.options = copyOptions(builder.options);
+        this.configurationKey = buildConfigurationKey();
+        this.arguments = Collections.unmodifiableList(buildArguments());
+        this.hashCode = Objects.hash(label, configurationKey, logLevel);
+    }
+
+    /**
+     * Creates a builder for an instance with the default configuration.
+     *
+     * @param label The label of the instance.
+     * @return The builder.
+     */
+    public static Builder builder(String label) {
+        return new Builder(label);
+    }
+
+    /**
+     * @return A builder initialized with the settings of this instance.
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder(label);
+        builder.windowed = windowed;
+        builder.fullSpeed = fullSpeed;
+        builder.fastBoot = fastBoot;
+        builder.useBlitter = useBlitter;
+        builder.useSound = useSound;
+        builder.useStatusBar = useStatusBar;
+        builder.headless = headless;
+        builder.consoleOutput = consoleOutput;
+        builder.machine = machine;
+        builder.tos = tos;
+        builder.mode = mode;
+        builder.memory = memory;
+        builder.logLevel = logLevel;
+        builder.profile = profile;
+        builder.options = copyOptions(options);
+        return builder;
+    }
+
+    private static Map<String, Map<String, String>> copyOptions(Map<String, Map<String, String>> options) {
+        Map<String, Map<String, String>> copy = new TreeMap<>();
+        options.forEach((section, values) -> copy.put(section, Collections.unmodifiableMap(new TreeMap<>(values))));
+        return Collections.unmodifiableMap(copy);
     }
 
     private static void addArgument(List<String> args, String argument, String value) {
@@ -108,97 +224,163 @@ public class HatariInstance {
         return label;
     }
 
-    public void setLabel(String label) {
-        this.label = label;
-    }
-
     public boolean isWindowed() {
         return windowed;
     }
 
-    public void setWindowed(boolean windowed) {
-        this.windowed = windowed;
-    }
-
     public boolean isFullSpeed() {
         return fullSpeed;
     }
 
-    public void setFullSpeed(boolean fullSpeed) {
-        this.fullSpeed = fullSpeed;
-    }
-
     public boolean isFastBoot() {
         return fastBoot;
     }
 
-    public void setFastBoot(boolean fastBoot) {
-        this.fastBoot = fastBoot;
-    }
-
     public boolean isUseBlitter() {
         return useBlitter;
     }
 
-    public void setUseBlitter(boolean useBlitter) {
-        this.useBlitter = useBlitter;
-    }
-
     public boolean isUseSound() {
         return useSound;
     }
 
-    public void setUseSound(boolean useSound) {
-        this.useSound = useSound;
-    }
-
     public boolean isUseStatusBar() {
         return useStatusBar;
     }
 
-    public void setUseStatusBar(boolean useStatusBar) {
-        this.useStatusBar = useStatusBar;
+    /**
+     * A headless emulator is launched with the "dummy" SDL video and audio drivers,
+     * so it neither opens a window nor needs a display or sound device. Keyboard
+     * input through the desktop is not available for headless emulators.
+     *
+     * @return True if the emulator runs without display.
+     */
+    public boolean isHeadless() {
+        return headless;
     }
 
-    public MachineType getMachine() {
-        return machine;
+    /**
+     * If enabled, the console output of the emulated system (everything a program prints with
+     * GEMDOS / BIOS calls, e.g. "Cconws()") is redirected to the standard output of the emulator,
+     * where it can be received line by line with {@link HatariSession#getConsole()}.
+     *
+     * @return True if the console output is redirected.
+     */
+    public boolean isConsoleOutput() {
+        return consoleOutput;
     }
 
-    public void setMachine(MachineType machine) {
-        this.machine = machine;
+    /**
+     * The log is part of the error output of the emulator, see {@link HatariSession#getErrorOutput()}.
+     *
+     * @return The log level of the emulator.
+     */
+    public LogLevel getLogLevel() {
+        return logLevel;
     }
 
-    public TOS getTos() {
-        return tos;
+    public MachineType getMachine() {
+        return machine;
     }
 
-    public void setTos(TOS tos) {
-        this.tos = tos;
+    public TOS getTos() {
+        return tos;
     }
 
     public ScreenMode getMode() {
         return mode;
     }
 
-    public void setMode(ScreenMode mode) {
-        this.mode = mode;
-    }
-
     public Memory getMemory() {
         return memory;
     }
 
-    public void setMemory(Memory memory) {
-        this.memory = memory;
+    /**
+     * @return The trade-off between emulation speed and accuracy.
+     */
+    public PerformanceProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Returns the additional settings which are written into the Hatari configuration
+     * file of this instance, see {@link Builder#option(String, String, String)}.
+     *
+     * @return The settings by section and key (unmodifiable, sorted).
+     */
+    public Map<String, Map<String, String>> getOptions() {
+        return options;
+    }
+
+    /**
+     * Returns a key which identifies the emulator configuration of this
+     * instance, regardless of its label. Two instances with the same key
+     * boot into an identical emulated system.
+     *
+     * @return The configuration key.
+     */
+    public String getConfigurationKey() {
+        return configurationKey;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the {@link #getConfigurationKey() configuration key},
+     * e.g. for naming cached files. It is stable across JVMs and versions of this class,
+     * as long as the configuration key doesn't change.
+     *
+     * @return The configuration hash.
+     */
+    public String getConfigurationHash() {
+        String hash = configurationHash;
+        if (hash == null) {
+            hash = FileUtil.sha256(configurationKey);
+            configurationHash = hash;
+        }
+        return hash;
+    }
+
+    private String buildConfigurationKey() {
+        return machine.type
+                + "/" + tos.name()
+                + "/" + memory.kbMemory
+                + "/" + mode.value
+                + "/" + (windowed ? "w" : "f")
+                + (fullSpeed ? "+fullspeed" : "")
+                + (fastBoot ? "+fastboot" : "")
+                + (useBlitter ? "+blitter" : "")
+                + (useSound ? "+sound" : "")
+                + (useStatusBar ? "+statusbar" : "")
+                + (headless ? "+headless" : "")
+                + (consoleOutput ? "+conout" : "")
+                + (profile == PerformanceProfile.balanced ? "" : "+" + profile.value)
+                + (options.isEmpty() ? "" : "+options" + options);
     }
 
     /**
      * Returns the Hatari emulator commandline arguments based on
      * the settings of this instance.
      *
+     * @param sandbox The sandbox the emulator runs in.
      * @return The commandline arguments.
      */
-    public List<String> getRuntimeArguments() {
+    public List<String> getRuntimeArguments(HatariSandbox sandbox) {
+        List<String> args = new ArrayList<>(arguments.size() + 2);
+        args.addAll(arguments);
+        addArgument(args, "--tos", sandbox.getTosImage().getAbsolutePath());
+        return args;
+    }
+
+    /**
+     * Returns the commandline arguments which only depend on the settings of this
+     * instance (everything except the files of the sandbox). They are calculated once.
+     *
+     * @return The commandline arguments (unmodifiable).
+     */
+    public List<String> getArguments() {
+        return arguments;
+    }
+
+    private List<String> buildArguments() {
         List<String> args = new ArrayList<>();
 
         if(fastBoot) {
@@ -214,14 +396,19 @@ public class HatariInstance {
         if (!useSound) {
             addArgument(args, "--sound", "off");
         }
+        args.addAll(profile.getArguments());
+        if (consoleOutput) {
+            // Console device 2 is the screen of the emulated system
+            addArgument(args, "--conout", "2");
+        }
 
-        addArgument(args, "--log-level", "debug");
-        addArgument(args, "--log-file", new File(HatariWrapper.workDirectory, "log.txt").getAbsolutePath());
+        addArgument(args, "--log-level", logLevel.value);
+        // Log into the error output, which is buffered in memory by the session
+        addArgument(args, "--log-file", "stderr");
 
         addArgument(args, "--machine", machine.type);
         addArgument(args, "--memsize", "" + memory.kbMemory);
         addArgument(args, "--tos-res", mode.value);
-        addArgument(args, "--tos", new File(HatariWrapper.workDirectory,"tos.img").getAbsolutePath());
         args.add("--monitor");
         if (mode == ScreenMode.high) {
             args.add("mono");
@@ -235,4 +422,192 @@ public class HatariInstance {
         }
         return args;
     }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof HatariInstance)) {
+            return false;
+        }
+        HatariInstance other = (HatariInstance) o;
+        return hashCode == other.hashCode
+                && label.equals(other.label)
+                && configurationKey.equals(other.configurationKey)
+                && logLevel == other.logLevel;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return label + " [" + configurationKey + "]";
+    }
+
+    /**
+     * Builder for {@link HatariInstance}s, initialized with the default configuration.
+     */
+    public static final class Builder {
+
+        private String label;
+
+        private boolean windowed = true;
+        private boolean fullSpeed = false;
+        private boolean fastBoot = false;
+        private boolean useBlitter = true;
+        private boolean useSound = true;
+        private boolean useStatusBar = true;
+        private boolean headless = false;
+        private boolean consoleOutput = false;
+
+        private MachineType machine = MachineType.ste;
+        private TOS tos = TOS.tos206;
+        private ScreenMode mode = ScreenMode.low;
+        private Memory memory = Memory.mb1;
+        private LogLevel logLevel = LogLevel.debug;
+        private PerformanceProfile profile = PerformanceProfile.balanced;
+        private Map<String, Map<String, String>> options = new TreeMap<>();
+
+        private Builder(String label) {
+            this.label = label;
+        }
+
+        public Builder label(String label) {
+            this.label = label;
+            return this;
+        }
+
+        public Builder windowed(boolean windowed) {
+            this.windowed = windowed;
+            return this;
+        }
+
+        public Builder fullSpeed(boolean fullSpeed) {
+            this.fullSpeed = fullSpeed;
+            return this;
+        }
+
+        public Builder fastBoot(boolean fastBoot) {
+            this.fastBoot = fastBoot;
+            return this;
+        }
+
+        public Builder useBlitter(boolean useBlitter) {
+            this.useBlitter = useBlitter;
+            return this;
+        }
+
+        public Builder useSound(boolean useSound) {
+            this.useSound = useSound;
+            return this;
+        }
+
+        public Builder useStatusBar(boolean useStatusBar) {
+            this.useStatusBar = useStatusBar;
+            return this;
+        }
+
+        /**
+         * Enables or disables the headless mode, see {@link HatariInstance#isHeadless()}.
+         *
+         * @param headless True to run the emulator without display.
+         * @return This builder.
+         */
+        public Builder headless(boolean headless) {
+            this.headless = headless;
+            return this;
+        }
+
+        /**
+         * Enables or disables the console output redirection, see {@link HatariInstance#isConsoleOutput()}.
+         *
+         * @param consoleOutput True to redirect the console output of the emulated system.
+         * @return This builder.
+         */
+        public Builder consoleOutput(boolean consoleOutput) {
+            this.consoleOutput = consoleOutput;
+            return this;
+        }
+
+        public Builder machine(MachineType machine) {
+            this.machine = machine;
+            return this;
+        }
+
+        public Builder tos(TOS tos) {
+            this.tos = tos;
+            return this;
+        }
+
+        public Builder mode(ScreenMode mode) {
+            this.mode = mode;
+            return this;
+        }
+
+        public Builder memory(Memory memory) {
+            this.memory = memory;
+            return this;
+        }
+
+        public Builder logLevel(LogLevel logLevel) {
+            this.logLevel = logLevel;
+            return this;
+        }
+
+        /**
+         * Sets the trade-off between emulation speed and accuracy. This also sets the full speed
+         * and sound settings to the defaults of the profile, which can be changed afterwards:
+         * <pre>
+         * builder.profile(PerformanceProfile.throughput).useSound(true)
+         * </pre>
+         *
+         * @param profile The performance profile.
+         * @return This builder.
+         */
+        public Builder profile(PerformanceProfile profile) {
+            this.profile = profile;
+            this.fullSpeed = profile.fullSpeed;
+            this.useSound = profile.useSound;
+            return this;
+        }
+
+        /**
+         * Sets any setting of the Hatari configuration file, e.g. option("System", "bCycleExactCpu", "FALSE").
+         * This gives access to all settings of Hatari (CPU, floppy, video, sound etc.), not only to the ones
+         * modelled by this class. Settings set by other methods of this builder take precedence, as they
+         * are passed on the commandline.
+         *
+         * @param section The section of the configuration file, without brackets (e.g. "System").
+         * @param key     The key of the setting (e.g. "bCycleExactCpu").
+         * @param value   The value, or null to remove the setting.
+         * @return This builder.
+         */
+        public Builder option(String section, String key, String value) {
+            Map<String, String> values = new TreeMap<>(options.getOrDefault(section, Collections.emptyMap()));
+            if (value == null) {
+                values.remove(key);
+            } else {
+                values.put(key, value);
+            }
+            Map<String, Map<String, String>> updated = new TreeMap<>(options);
+            if (values.isEmpty()) {
+                updated.remove(section);
+            } else {
+                updated.put(section, values);
+            }
+            options = updated;
+            return this;
+        }
+
+        /**
+         * @return The new instance.
+         */
+        public HatariInstance build() {
+            return new HatariInstance(this);
+        }
+    }
 }
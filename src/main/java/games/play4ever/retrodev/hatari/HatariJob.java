@@ -0,0 +1,220 @@
+package games.play4ever.retrodev.hatari;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * An unattended run of an Atari program, see {@link HatariRuntime#run(HatariJob)}: the program
+ * (or a zip archive / directory containing it) is synchronized into drive "C:" of a freshly
+ * started emulator, and started automatically at boot. The job is done once the program
+ * has written all expected result files into drive "C:" and printed the expected console
+ * output; if neither is expected, once the emulator terminates. As Hatari keeps running
+ * after the program has finished, a program without expected files or output must end the
+ * emulator itself, with the native feature NF_EXIT (passing its exit code) or NF_SHUTDOWN.
+ * Otherwise the job runs into its timeout.
+ * <p></p>
+ * Usage:
+ * <pre>
+ * HatariJob job = HatariJob.builder("compile", new File("build.zip"))
+ *         .autoStart("BIN/MAKE.PRG")
+ *         .expectFile("OUT/GAME.PRG")
+ *         .timeout(2, TimeUnit.MINUTES)
+ *         .build();
+ * HatariJobResult result = HatariWrapper.run(job);
+ * </pre>
+ * Many jobs can be run in parallel with a {@link HatariBatch}.
+ *
+ * @author Marcel Schoen
+ */
+public final class HatariJob {
+
+    private final String name;
+    private final File program;
+    private final HatariInstance instance;
+    private final String autoStart;
+    private final long timeoutMillis;
+    private final List<String> expectedFiles;
+    private final Pattern expectedOutput;
+
+    private HatariJob(Builder builder) {
+        this.name = Objects.requireNonNull(builder.name, "name");
+        this.program = Objects.requireNonNull(builder.program, "program");
+        this.instance = builder.instance != null ? builder.instance
+                : HatariInstance.builder(name)
+                        .headless(true)
+                        .profile(PerformanceProfile.throughput)
+                        .build();
+        this.autoStart = builder.autoStart;
+        this.timeoutMillis = builder.timeoutMillis;
+        this.expectedFiles = Collections.unmodifiableList(new ArrayList<>(builder.expectedFiles));
+        this.expectedOutput = builder.expectedOutput;
+    }
+
+    /**
+     * Creates a builder for a job.
+     *
+     * @param name    The name of the job (used in reports and for the result directory).
+     * @param program The program, zip archive or directory to synchronize into drive "C:".
+     * @return The builder.
+     */
+    public static Builder builder(String name, File program) {
+        return new Builder(name, program);
+    }
+
+    /**
+     * @return The name of the job.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The program, zip archive or directory which is synchronized into drive "C:".
+     */
+    public File getProgram() {
+        return program;
+    }
+
+    /**
+     * The emulator configuration of the job. By default, a headless emulator with the
+     * {@link PerformanceProfile#throughput} profile.
+     *
+     * @return The emulator instance configuration.
+     */
+    public HatariInstance getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the path of the program which is started at boot, relative to drive "C:". If
+     * not set explicitly, a program file is started itself; for a zip archive or a directory,
+     * nothing is started automatically.
+     *
+     * @return The path of the program to start, or null.
+     */
+    public String getAutoStart() {
+        if (autoStart == null && program.isFile() && !program.getName().toLowerCase().endsWith(".zip")) {
+            return program.getName();
+        }
+        return autoStart;
+    }
+
+    /**
+     * @return The maximum time the job may run, in milliseconds.
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Returns the files the program is expected to write.
+     *
+     * @return The paths of the expected files, relative to drive "C:".
+     */
+    public List<String> getExpectedFiles() {
+        return expectedFiles;
+    }
+
+    /**
+     * Returns the output the program is expected to print on the console (which is redirected
+     * to the standard output of the emulator). The Hatari log is not searched.
+     *
+     * @return The pattern of the expected output line, or null.
+     */
+    public Pattern getExpectedOutput() {
+        return expectedOutput;
+    }
+
+    @Override
+    public String toString() {
+        return name + " [" + program + "]";
+    }
+
+    /**
+     * Builder for {@link HatariJob}s.
+     */
+    public static final class Builder {
+
+        private final String name;
+        private final File program;
+        private HatariInstance instance;
+        private String autoStart;
+        private long timeoutMillis = TimeUnit.MINUTES.toMillis(5);
+        private final List<String> expectedFiles = new ArrayList<>();
+        private Pattern expectedOutput;
+
+        private Builder(String name, File program) {
+            this.name = name;
+            this.program = program;
+        }
+
+        /**
+         * Sets the emulator configuration. Its label is replaced with a unique one per job run.
+         *
+         * @param instance The emulator instance configuration.
+         * @return This builder.
+         */
+        public Builder instance(HatariInstance instance) {
+            this.instance = instance;
+            return this;
+        }
+
+        /**
+         * Sets the program to start at boot, see {@link HatariJob#getAutoStart()}.
+         *
+         * @param path The path of the program, relative to drive "C:" (e.g. "BIN/MAKE.PRG").
+         * @return This builder.
+         */
+        public Builder autoStart(String path) {
+            this.autoStart = path;
+            return this;
+        }
+
+        /**
+         * Sets the maximum time the job may run (default: 5 minutes).
+         *
+         * @param timeout The maximum runtime.
+         * @param unit    The time unit.
+         * @return This builder.
+         */
+        public Builder timeout(long timeout, TimeUnit unit) {
+            this.timeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * Adds a file which the program is expected to write.
+         *
+         * @param path The path of the file, relative to drive "C:" (e.g. "OUT/RESULT.TXT").
+         * @return This builder.
+         */
+        public Builder expectFile(String path) {
+            this.expectedFiles.add(path);
+            return this;
+        }
+
+        /**
+         * Sets the output line which the program is expected to print, e.g. "(PASSED|FAILED)".
+         * The console output of the program is redirected to the emulator output for this.
+         *
+         * @param pattern The pattern of the expected output line.
+         * @return This builder.
+         */
+        public Builder expectOutput(Pattern pattern) {
+            this.expectedOutput = pattern;
+            return this;
+        }
+
+        /**
+         * @return The new job.
+         */
+        public HatariJob build() {
+            return new HatariJob(this);
+        }
+    }
+}
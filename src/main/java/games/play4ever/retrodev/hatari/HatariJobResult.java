@@ -0,0 +1,110 @@
+package games.play4ever.retrodev.hatari;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.OptionalInt;
+
+/**
+ * The outcome of a {@link HatariJob}: its status, how long it took, the result
+ * files collected from drive "C:" of its emulator, the matching console output
+ * and the exit code of the emulator.
+ *
+ * @author Marcel Schoen
+ */
+public class HatariJobResult {
+
+    /**
+     * Status of a finished job.
+     */
+    public enum Status {
+        /** The program wrote all expected files and output (or the emulator terminated normally). */
+        passed,
+        /** The emulator could not be started, or terminated before all expected files and output were written. */
+        failed,
+        /** The job exceeded its timeout. */
+        timeout
+    }
+
+    private final HatariJob job;
+    private final Status status;
+    private final Duration duration;
+    private final List<File> files;
+    private final String outputLine;
+    private final OptionalInt exitCode;
+    private final String message;
+
+    HatariJobResult(HatariJob job, Status status, Duration duration, List<File> files,
+                    String outputLine, OptionalInt exitCode, String message) {
+        this.job = job;
+        this.status = status;
+        this.duration = duration;
+        this.files = Collections.unmodifiableList(files);
+        this.outputLine = outputLine;
+        this.exitCode = exitCode;
+        this.message = message;
+    }
+
+    /**
+     * @return The job.
+     */
+    public HatariJob getJob() {
+        return job;
+    }
+
+    /**
+     * @return The status of the job.
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return True if the job passed.
+     */
+    public boolean isPassed() {
+        return status == Status.passed;
+    }
+
+    /**
+     * @return The time from starting the emulator until the job was done.
+     */
+    public Duration getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return The expected files written by the program, copied into the result directory.
+     */
+    public List<File> getFiles() {
+        return files;
+    }
+
+    /**
+     * @return The output line matching {@link HatariJob#getExpectedOutput()}, or null.
+     */
+    public String getOutputLine() {
+        return outputLine;
+    }
+
+    /**
+     * @return The exit code of the emulator, or empty if it was still running when the job was done.
+     */
+    public OptionalInt getExitCode() {
+        return exitCode;
+    }
+
+    /**
+     * @return Details about a failure, or null.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-32s %-8s %8.1f s  %s", job.getName(), status.name(),
+                duration.toMillis() / 1000.0, message == null ? files.size() + " file(s)" : message);
+    }
+}
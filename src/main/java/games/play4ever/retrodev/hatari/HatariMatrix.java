@@ -0,0 +1,196 @@
+package games.play4ever.retrodev.hatari;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a program on many combinations of TOS version, machine type and memory size, to
+ * validate its compatibility. The combinations are expanded from a template job; every
+ * combination runs as a separate job in a {@link HatariBatch}, so they run concurrently
+ * (one emulator per processor core by default).
+ * <p></p>
+ * Unless set explicitly, every machine type runs with its default TOS version and memory
+ * size (see {@link MachineType}). The blitter is enabled according to the machine type.
+ * Combinations of a TOS version with a machine type it doesn't support (see
+ * {@link MachineType#isCompatible(TOS)}) are skipped. To keep the boots short, every
+ * emulator uses fast boot.
+ * <p></p>
+ * Usage:
+ * <pre>
+ * HatariJob template = HatariJob.builder("mygame", new File("MYGAME.PRG"))
+ *         .expectFile("SELFTEST.OK")
+ *         .build();
+ * HatariMatrix matrix = new HatariMatrix(template)
+ *         .tos(TOS.values())
+ *         .machines(MachineType.st, MachineType.ste);
+ * try (HatariBatch batch = new HatariBatch(HatariWrapper.getRuntime())) {
+ *     System.out.println(matrix.getReport(matrix.run(batch)));
+ * }
+ * </pre>
+ *
+ * @author Marcel Schoen
+ */
+public class HatariMatrix {
+
+    private final HatariJob template;
+
+    private List<TOS> tosVersions = Collections.emptyList();
+    private List<MachineType> machines = Collections.singletonList(MachineType.ste);
+    private List<Memory> memorySizes = Collections.emptyList();
+
+    /**
+     * Creates a matrix for the given template job. Its program, auto-start, expected files,
+     * timeout and emulator settings are used for all combinations.
+     *
+     * @param template The template job.
+     */
+    public HatariMatrix(HatariJob template) {
+        this.template = template;
+    }
+
+    /**
+     * Sets the TOS versions to run with. By default, every machine type runs with its default TOS.
+     *
+     * @param tos The TOS versions.
+     * @return This matrix.
+     */
+    public HatariMatrix tos(TOS... tos) {
+        this.tosVersions = Arrays.asList(tos);
+        return this;
+    }
+
+    /**
+     * Sets the machine types to run on (default: STE).
+     *
+     * @param machines The machine types.
+     * @return This matrix.
+     */
+    public HatariMatrix machines(MachineType... machines) {
+        this.machines = Arrays.asList(machines);
+        return this;
+    }
+
+    /**
+     * Sets the memory sizes to run with. By default, every machine type runs with its default memory size.
+     *
+     * @param memory The memory sizes.
+     * @return This matrix.
+     */
+    public HatariMatrix memory(Memory... memory) {
+        this.memorySizes = Arrays.asList(memory);
+        return this;
+    }
+
+    /**
+     * Expands the template job into one job per supported combination.
+     *
+     * @return The jobs, named "&lt;template name&gt;-&lt;machine&gt;-&lt;memory&gt;-&lt;TOS&gt;".
+     */
+    public List<HatariJob> getJobs() {
+        List<HatariJob> jobs = new ArrayList<>();
+        for (MachineType machine : machines) {
+            List<TOS> tosList = tosVersions.isEmpty() ? Collections.singletonList(machine.tosVersion) : tosVersions;
+            List<Memory> memoryList = memorySizes.isEmpty() ? Collections.singletonList(getDefaultMemory(machine)) : memorySizes;
+            for (TOS tos : tosList) {
+                if (!machine.isCompatible(tos)) {
+                    continue;
+                }
+                for (Memory memory : memoryList) {
+                    jobs.add(createJob(machine, tos, memory));
+                }
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Runs all combinations in the given batch, and waits for them to finish.
+     *
+     * @param batch The batch which runs the jobs.
+     * @return The results of all combinations.
+     */
+    public List<HatariJobResult> run(HatariBatch batch) {
+        List<HatariJob> jobs = getJobs();
+        System.out.println(">> Run " + template.getName() + " in " + jobs.size() + " configuration(s)");
+        return batch.runAll(jobs);
+    }
+
+    /**
+     * Creates a compact report of the given results: one row per TOS version, one column per
+     * machine type and memory size. Every cell shows the status and duration of the run
+     * ("ok 12.3s", "FAIL", "TIME"), or "-" for combinations which were skipped.
+     *
+     * @param results The results of {@link #run(HatariBatch)}.
+     * @return The report.
+     */
+    public String getReport(List<HatariJobResult> results) {
+        Set<String> columns = new LinkedHashSet<>();
+        Map<String, Map<String, HatariJobResult>> rows = new TreeMap<>();
+        for (HatariJobResult result : results) {
+            HatariInstance instance = result.getJob().getInstance();
+            String column = getColumn(instance);
+            columns.add(column);
+            rows.computeIfAbsent(instance.getTos().name(), tos -> new TreeMap<>()).put(column, result);
+        }
+        StringBuilder report = new StringBuilder(String.format("%-12s", "TOS"));
+        columns.forEach(column -> report.append(String.format(" %-12s", column)));
+        report.append("\n");
+        rows.forEach((tos, cells) -> {
+            report.append(String.format("%-12s", tos));
+            columns.forEach(column -> report.append(String.format(" %-12s",
+                    Optional.ofNullable(cells.get(column)).map(HatariMatrix::getCell).orElse("-"))));
+            report.append("\n");
+        });
+        long passed = results.stream().filter(HatariJobResult::isPassed).count();
+        report.append(">> ").append(passed).append(" of ").append(results.size()).append(" configuration(s) passed");
+        return report.toString();
+    }
+
+    private HatariJob createJob(MachineType machine, TOS tos, Memory memory) {
+        HatariInstance instance = template.getInstance().toBuilder()
+                .machine(machine)
+                .tos(tos)
+                .memory(memory)
+                .useBlitter(machine.hasBlitter)
+                .fastBoot(true)
+                .build();
+        HatariJob.Builder job = HatariJob.builder(template.getName() + "-" + getColumn(instance).replace('/', '-')
+                        + "-" + tos.name(), template.getProgram())
+                .instance(instance)
+                .autoStart(template.getAutoStart())
+                .timeout(template.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        template.getExpectedFiles().forEach(job::expectFile);
+        job.expectOutput(template.getExpectedOutput());
+        return job.build();
+    }
+
+    private static String getColumn(HatariInstance instance) {
+        return instance.getMachine().type + "/" + instance.getMemory().name();
+    }
+
+    private static String getCell(HatariJobResult result) {
+        switch (result.getStatus()) {
+            case passed:
+                return String.format("ok %.1fs", result.getDuration().toMillis() / 1000.0);
+            case timeout:
+                return "TIME";
+            default:
+                return "FAIL";
+        }
+    }
+
+    private static Memory getDefaultMemory(MachineType machine) {
+        return Arrays.stream(Memory.values())
+                .filter(memory -> memory.kbMemory == machine.kbMemory)
+                .findFirst()
+                .orElse(Memory.mb1);
+    }
+}
@@ -0,0 +1,406 @@
+package games.play4ever.retrodev.hatari;
+
+import com.sun.jna.platform.DesktopWindow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of already started Hatari emulators. For every emulator configuration
+ * (see {@link HatariInstance#getConfigurationKey()}) and log level, the pool keeps a number
+ * of emulators running in the background, so that they have already booted
+ * when a caller acquires one. Emulators are started and shut down outside of
+ * the pool lock, so a slow boot doesn't block other callers of the pool.
+ * <p></p>
+ * A released emulator is not handed out again as it is; instead it is shut down
+ * and replaced by a freshly started one, so that every caller gets an emulator
+ * in a clean, just-booted state. Emulators which stayed idle for longer than the
+ * configured timeout are shut down, as long as this does not shrink the pool
+ * below its minimum size.
+ * <p></p>
+ * Usage:
+ * <pre>
+ * HatariWrapper.prepare(new File("./hatari"), TOS.tos206);
+ * try (HatariPool pool = new HatariPool(2, 4, 5, TimeUnit.MINUTES)) {
+ *     HatariPool.PooledEmulator emulator = pool.acquire(new HatariInstance("testing"));
+ *     ...
+ *     pool.release(emulator);
+ * }
+ * </pre>
+ *
+ * @author Marcel Schoen
+ */
+public class HatariPool implements AutoCloseable {
+
+    private final HatariRuntime runtime;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+
+    /**
+     * Idle (not acquired) emulators per configuration key.
+     */
+    private final Map<String, Deque<PooledEmulator>> idleEmulators = new HashMap<>();
+
+    /**
+     * Number of emulators per configuration key, including acquired ones.
+     */
+    private final Map<String, Integer> emulatorCounts = new HashMap<>();
+
+    /**
+     * The configuration template per configuration key, used to start new emulators.
+     */
+    private final Map<String, HatariInstance> configurations = new HashMap<>();
+
+    private final AtomicInteger instanceCounter = new AtomicInteger();
+
+    private final ScheduledExecutorService maintenance;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a new emulator pool, whose emulators are run by the default runtime
+     * (see {@link HatariWrapper#getRuntime()}).
+     *
+     * @param minSize     The number of emulators to keep running per configuration.
+     * @param maxSize     The maximum number of emulators per configuration.
+     * @param idleTimeout Time after which an idle emulator above the minimum size is shut down.
+     * @param unit        The time unit of the idle timeout.
+     */
+    public HatariPool(int minSize, int maxSize, long idleTimeout, TimeUnit unit) {
+        this(HatariWrapper.getRuntime(), minSize, maxSize, idleTimeout, unit);
+    }
+
+    /**
+     * Creates a new emulator pool.
+     *
+     * @param runtime     The runtime which runs the emulators.
+     * @param minSize     The number of emulators to keep running per configuration.
+     * @param maxSize     The maximum number of emulators per configuration.
+     * @param idleTimeout Time after which an idle emulator above the minimum size is shut down.
+     * @param unit        The time unit of the idle timeout.
+     */
+    public HatariPool(HatariRuntime runtime, int minSize, int maxSize, long idleTimeout, TimeUnit unit) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+        }
+        this.runtime = runtime;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "hatari-pool-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1000, idleTimeoutMillis / 2);
+        this.maintenance.scheduleWithFixedDelay(this::maintain, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts the minimum number of emulators for the given configuration
+     * in the background, so that later calls to {@link #acquire(HatariInstance)}
+     * don't have to wait for the emulator to boot.
+     *
+     * @param configuration The emulator configuration.
+     */
+    public void warmUp(HatariInstance configuration) {
+        synchronized (this) {
+            checkOpen();
+            register(configuration);
+        }
+        maintenance.execute(this::maintain);
+    }
+
+    /**
+     * Acquires an emulator with the given configuration. If no idle emulator
+     * is available, a new one is started, unless the maximum size is already
+     * reached, in which case an exception is thrown.
+     *
+     * @param configuration The emulator configuration.
+     * @return The acquired emulator.
+     */
+    public PooledEmulator acquire(HatariInstance configuration) {
+        try {
+            return acquire(configuration, 0, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("No emulator available for configuration "
+                    + getPoolKey(configuration) + " (max. pool size " + maxSize + " reached)");
+        }
+    }
+
+    /**
+     * Acquires an emulator with the given configuration. If no idle emulator
+     * is available, a new one is started, and this method waits until it has booted.
+     * If the maximum size is already reached, waits up to the given time for another
+     * emulator to be released.
+     *
+     * @param configuration The emulator configuration.
+     * @param timeout       The maximum time to wait for a released emulator.
+     * @param unit          The time unit of the timeout.
+     * @return The acquired emulator, which is ready to be used.
+     * @throws TimeoutException If no emulator became available in time.
+     */
+    public PooledEmulator acquire(HatariInstance configuration, long timeout, TimeUnit unit)
+            throws TimeoutException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        String key;
+        List<PooledEmulator> dead = new ArrayList<>();
+        try {
+            synchronized (this) {
+                key = register(configuration);
+                while (true) {
+                    checkOpen();
+                    Deque<PooledEmulator> idle = idleEmulators.get(key);
+                    while (!idle.isEmpty()) {
+                        PooledEmulator emulator = idle.pollFirst();
+                        if (runtime.isRunning(emulator.instance)) {
+                            // Replenish the pool in the background
+                            maintenance.execute(this::maintain);
+                            return emulator;
+                        }
+                        // Emulator died while idle - forget about it
+                        dead.add(emulator);
+                    }
+                    if (emulatorCounts.get(key) < maxSize) {
+                        // Reserve the slot, the emulator is started outside of the lock
+                        emulatorCounts.merge(key, 1, Integer::sum);
+                        break;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new TimeoutException("No emulator available for configuration " + key);
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for emulator", e);
+                    }
+                }
+            }
+        } finally {
+            dead.forEach(this::discard);
+        }
+        PooledEmulator emulator = startEmulator(key);
+        try {
+            emulator.session.ready().join();
+        } catch (CompletionException e) {
+            discard(emulator);
+            throw new IllegalStateException("Pooled emulator " + emulator.instance.getLabel()
+                    + " failed to boot: " + e.getCause().getMessage(), e.getCause());
+        }
+        return emulator;
+    }
+
+    /**
+     * Returns an emulator to the pool. The emulator is shut down and replaced
+     * by a freshly booted one in the background.
+     *
+     * @param emulator The emulator to release.
+     */
+    public void release(PooledEmulator emulator) {
+        discard(emulator);
+        synchronized (this) {
+            if (!closed) {
+                maintenance.execute(this::maintain);
+            }
+        }
+    }
+
+    /**
+     * Shuts down all idle emulators of this pool. Emulators which are currently
+     * acquired are shut down when they are released, emulators which are still
+     * booting once they are ready.
+     */
+    @Override
+    public void close() {
+        List<PooledEmulator> idle = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            maintenance.shutdownNow();
+            idleEmulators.values().forEach(idle::addAll);
+            idleEmulators.clear();
+            notifyAll();
+        }
+        idle.forEach(this::discard);
+    }
+
+    /**
+     * Shuts down idle emulators which exceeded the idle timeout, removes
+     * emulators which terminated by themselves and starts new ones until
+     * the minimum size is reached again. New emulators are added to the idle
+     * emulators once they have booted.
+     */
+    private void maintain() {
+        List<PooledEmulator> discarded = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Deque<PooledEmulator>> entry : idleEmulators.entrySet()) {
+                String key = entry.getKey();
+                int count = emulatorCounts.get(key);
+                Iterator<PooledEmulator> idle = entry.getValue().iterator();
+                while (idle.hasNext()) {
+                    PooledEmulator emulator = idle.next();
+                    boolean expired = now - emulator.lastUsed > idleTimeoutMillis && count > minSize;
+                    if (expired || !runtime.isRunning(emulator.instance)) {
+                        idle.remove();
+                        discarded.add(emulator);
+                        count--;
+                    }
+                }
+                // Reserve the slots of the emulators to start
+                for (; count < minSize; count++) {
+                    emulatorCounts.merge(key, 1, Integer::sum);
+                    missing.add(key);
+                }
+            }
+        }
+        discarded.forEach(this::discard);
+        for (String key : missing) {
+            PooledEmulator emulator;
+            try {
+                emulator = startEmulator(key);
+            } catch (RuntimeException e) {
+                System.out.println(">> Failed to start pooled emulator for " + key + ": " + e);
+                continue;
+            }
+            emulator.session.ready().whenComplete((session, e) -> addIdle(emulator, e));
+        }
+    }
+
+    /**
+     * Makes a freshly booted emulator available, or discards it if it failed to boot
+     * or the pool has been closed meanwhile.
+     */
+    private void addIdle(PooledEmulator emulator, Throwable bootFailure) {
+        synchronized (this) {
+            if (bootFailure == null && !closed) {
+                emulator.lastUsed = System.currentTimeMillis();
+                idleEmulators.get(emulator.key).addLast(emulator);
+                notifyAll();
+                return;
+            }
+        }
+        if (bootFailure != null) {
+            System.out.println(">> Pooled emulator " + emulator.instance.getLabel() + " failed to boot: " + bootFailure);
+        }
+        discard(emulator);
+    }
+
+    /**
+     * Returns the key under which emulators of the given configuration are pooled. Besides the
+     * configuration of the emulated system, it includes the log level, which is not part of the
+     * configuration key, but of the arguments of the emulator.
+     */
+    private static String getPoolKey(HatariInstance configuration) {
+        return configuration.getConfigurationKey() + "/" + configuration.getLogLevel().name();
+    }
+
+    private String register(HatariInstance configuration) {
+        String key = getPoolKey(configuration);
+        configurations.putIfAbsent(key, configuration);
+        idleEmulators.computeIfAbsent(key, k -> new ArrayDeque<>());
+        emulatorCounts.putIfAbsent(key, 0);
+        return key;
+    }
+
+    /**
+     * Launches an emulator for a slot which has already been reserved in the emulator counts.
+     * The slot is given back if the launch fails.
+     */
+    private PooledEmulator startEmulator(String key) {
+        HatariInstance configuration;
+        synchronized (this) {
+            configuration = configurations.get(key);
+        }
+        HatariInstance instance = new HatariInstance(configuration.getLabel()
+                + "-pool-" + instanceCounter.incrementAndGet(), configuration);
+        System.out.println(">> Start pooled emulator " + instance.getLabel() + " for " + key);
+        HatariSession session;
+        try {
+            // Keep the session itself: if the emulator dies while booting, it is no longer registered in the runtime
+            session = runtime.launchSession(instance, null, null, null, null);
+        } catch (RuntimeException e) {
+            runtime.deleteSandbox(instance);
+            releaseSlot(key);
+            throw e;
+        }
+        return new PooledEmulator(key, instance, session);
+    }
+
+    /**
+     * Shuts down the given emulator, and gives back its slot.
+     */
+    private void discard(PooledEmulator emulator) {
+        runtime.deleteSandbox(emulator.instance);
+        releaseSlot(emulator.key);
+    }
+
+    private synchronized void releaseSlot(String key) {
+        emulatorCounts.computeIfPresent(key, (k, count) -> Math.max(0, count - 1));
+        notifyAll();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Emulator pool is closed");
+        }
+    }
+
+    /**
+     * An emulator managed by the pool.
+     */
+    public static class PooledEmulator {
+
+        private final String key;
+        private final HatariInstance instance;
+        private final HatariSession session;
+        private long lastUsed = System.currentTimeMillis();
+
+        private PooledEmulator(String key, HatariInstance instance, HatariSession session) {
+            this.key = key;
+            this.instance = instance;
+            this.session = session;
+        }
+
+        /**
+         * @return The running emulator instance.
+         */
+        public HatariInstance getInstance() {
+            return instance;
+        }
+
+        /**
+         * @return The session of the running emulator, which tells when it is ready.
+         */
+        public HatariSession getSession() {
+            return session;
+        }
+
+        /**
+         * @return The emulator window, or null if not available on this platform.
+         */
+        public DesktopWindow getWindow() {
+            return session.getWindow();
+        }
+    }
+}
@@ -0,0 +1,990 @@
+package games.play4ever.retrodev.hatari;
+
+import com.sun.jna.platform.DesktopWindow;
+import com.sun.jna.platform.WindowUtils;
+import com.sun.jna.platform.win32.User32;
+import com.sun.jna.platform.win32.WinDef;
+import games.play4ever.retrodev.util.ChangeSet;
+import games.play4ever.retrodev.util.PlatformUtil;
+
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Manager of Hatari emulators: runs any number of emulator instances, each in its own
+ * {@link HatariSandbox}, with its own configuration (work directory, emulator installation,
+ * TOS store, snapshot cache). Several runtimes can be used independently of each other
+ * in the same JVM; {@link HatariWrapper} provides static access to a default runtime.
+ * <p></p>
+ * All methods are thread-safe. Running sessions and sandboxes are kept in concurrent
+ * maps, so looking them up never blocks; only starting the same instance from several
+ * threads at once is serialized.
+ * <p></p>
+ * Closing the runtime kills all its emulators. Emulators of runtimes which are still open
+ * when the JVM terminates are killed by a shutdown hook, together with any processes
+ * they may have started, so no emulator survives the JVM.
+ * <p></p>
+ * Usage:
+ * <pre>
+ * try (HatariRuntime runtime = new HatariRuntime()) {
+ *     runtime.prepare(new File("./hatari"), TOS.tos206);
+ *     HatariSession session = runtime.startSession(instance).get(30, TimeUnit.SECONDS);
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author Marcel Schoen
+ */
+public class HatariRuntime implements AutoCloseable {
+
+    /**
+     * Runtimes which have not been closed yet, for the shutdown hook.
+     */
+    private static final Set<HatariRuntime> OPEN_RUNTIMES = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(HatariRuntime::killAll, "hatari-shutdown"));
+    }
+
+    /**
+     * Robot for keyboard input, created on first use (not available without a display).
+     * There is only one keyboard, so it is shared by all runtimes.
+     */
+    private static Robot robot;
+
+    private volatile File workDirectory = new File(".");
+
+    /**
+     * Directory in which the emulator installations are cached.
+     */
+    private volatile File installCache = HatariInstallation.getDefaultCacheDirectory();
+
+    /**
+     * Cache of the generated Hatari configuration files, set by {@link #prepare(File, TOS)}.
+     */
+    private volatile HatariConfigCache configCache;
+
+    /**
+     * Optional Hatari executable installed on the system, used instead of the bundled emulator.
+     */
+    private volatile File emulatorExecutable = System.getProperty("hatari.executable") != null
+            ? new File(System.getProperty("hatari.executable")) : null;
+
+    /**
+     * The emulator installation used, set by {@link #prepare(File, TOS)}.
+     */
+    private volatile HatariInstallation installation;
+
+    /**
+     * Store of the extracted TOS images.
+     */
+    private volatile TosStore tosStore = TosStore.getDefault();
+
+    /**
+     * Optional cache of post-boot memory snapshots.
+     */
+    private volatile HatariSnapshotCache snapshotCache;
+
+    /**
+     * Number of output lines kept in memory per emulator output stream.
+     */
+    private volatile int outputBufferLines = 2000;
+
+    /**
+     * Sessions of the running emulators (process, window, remote control).
+     */
+    private final Map<HatariInstance, HatariSession> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Sandbox of each instance.
+     */
+    private final Map<HatariInstance, HatariSandbox> sandboxes = new ConcurrentHashMap<>();
+
+    /**
+     * Locks which serialize starting the same instance from several threads.
+     */
+    private final Map<HatariInstance, Object> launchLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Counter for the unique labels of job runs.
+     */
+    private final AtomicInteger jobCounter = new AtomicInteger();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a runtime with the default configuration. It must be prepared with
+     * {@link #prepare(File, TOS)} before starting emulators.
+     */
+    public HatariRuntime() {
+        OPEN_RUNTIMES.add(this);
+    }
+
+    /**
+     * Prepares the emulator for running instances in the given work directory. The
+     * Hatari emulator is unpacked into a cache directory which is shared by all processes
+     * of the user (see {@link HatariInstallation}), if it isn't already there. Alternatively,
+     * a Hatari emulator installed on the system can be used, see {@link #setEmulatorExecutable(File)}. Within the given
+     * work directory, a subfolder "sandboxes" will be created, which holds a separate
+     * {@link HatariSandbox} for each emulator instance. Its folder "drivec" will be mounted
+     * as GEMDOS drive "C:" in the emulator. This allows the host system and the emulator
+     * shared file access.
+     *
+     * @param workDirectory The directory for the sandboxes of the emulator instances.
+     * @param tos           The TOS version to extract into the {@link TosStore} right away.
+     *                      Every emulator instance runs with its own TOS version, see {@link HatariInstance#getTos()}.
+     */
+    public synchronized void prepare(File workDirectory, TOS tos) {
+        checkOpen();
+        this.workDirectory = workDirectory;
+        workDirectory.mkdirs();
+        PlatformUtil.OSType osType = PlatformUtil.getOperatingSystemType();
+        try {
+            if (emulatorExecutable != null) {
+                installation = HatariInstallation.ofSystem(emulatorExecutable);
+            } else if (osType.emulatorArchive != null && HatariRuntime.class.getResource(osType.emulatorArchive) != null) {
+                installation = HatariInstallation.install(installCache, osType);
+            } else {
+                File systemHatari = HatariInstallation.findOnPath();
+                if (systemHatari == null) {
+                    throw new RuntimeException(">> Platform '" + osType.name() + " not yet supported, and no Hatari found in the PATH.");
+                }
+                installation = HatariInstallation.ofSystem(systemHatari);
+            }
+        } catch (IOException ex) {
+            // Keep the files; the manifest makes sure the next attempt repairs the installation
+            throw new RuntimeException("Failed to prepare the emulator: " + ex, ex);
+        }
+        configCache = new HatariConfigCache(new File(installCache, "configs"));
+        // Make sure the default TOS image is available right away
+        tosStore.getImage(tos);
+    }
+
+    /**
+     * @return The directory for the sandboxes of the emulator instances.
+     */
+    public File getWorkDirectory() {
+        return workDirectory;
+    }
+
+    /**
+     * Sets the Hatari executable installed on the system to use, instead of the emulator
+     * bundled with this wrapper. Must be called before {@link #prepare(File, TOS)}. By default,
+     * the value of the system property "hatari.executable" is used, if set. If neither is set
+     * and no emulator is bundled for the platform, the Hatari executable is searched in the "PATH".
+     *
+     * @param executable The Hatari executable, or null to use the bundled emulator.
+     */
+    public void setEmulatorExecutable(File executable) {
+        emulatorExecutable = executable;
+    }
+
+    /**
+     * Sets the directory in which the emulator is installed by {@link #prepare(File, TOS)}.
+     * By default, the shared cache in the user's cache directory is used, see
+     * {@link HatariInstallation#getDefaultCacheDirectory()}.
+     *
+     * @param directory The installation cache directory.
+     */
+    public void setInstallCache(File directory) {
+        installCache = Objects.requireNonNull(directory);
+    }
+
+    /**
+     * @return The emulator installation used.
+     * @throws IllegalStateException If {@link #prepare(File, TOS)} has not been called yet.
+     */
+    public HatariInstallation getInstallation() {
+        HatariInstallation current = installation;
+        if (current == null) {
+            throw new IllegalStateException("Emulator not installed, call prepare() first");
+        }
+        return current;
+    }
+
+    /**
+     * Sets the store from which the TOS images are used. By default, the
+     * shared store in the user's cache directory is used, see {@link TosStore#getDefault()}.
+     *
+     * @param store The TOS image store.
+     */
+    public void setTosStore(TosStore store) {
+        tosStore = Objects.requireNonNull(store);
+    }
+
+    /**
+     * @return The store from which the TOS images are used.
+     */
+    public TosStore getTosStore() {
+        return tosStore;
+    }
+
+    /**
+     * Sets the cache for post-boot memory snapshots. If set, every emulator which
+     * is started without an explicit memory snapshot file is resumed from the
+     * cached snapshot for its configuration, which is created on the first start.
+     *
+     * @param cache The snapshot cache, or null to disable the cache.
+     */
+    public void setSnapshotCache(HatariSnapshotCache cache) {
+        snapshotCache = cache;
+    }
+
+    /**
+     * Sets the number of lines of emulator output (per output stream) which are kept
+     * in memory. The output is only written to disk if the emulator fails.
+     *
+     * @param lines The number of lines to keep.
+     */
+    public void setOutputBufferLines(int lines) {
+        outputBufferLines = lines;
+    }
+
+    /**
+     * Launches the emulator of the given instance.
+     *
+     * @param instance   The emulator instance to start.
+     */
+    public DesktopWindow startEmulator(HatariInstance instance) {
+        return startEmulator(instance, null, null);
+    }
+
+    /**
+     * Launches the emulator of the given instance.
+     *
+     * @param instance           The emulator instance to start.
+     * @param memorySnapshotFile Optional: Memory snapshot file to start the emulator with.
+     * @param programOrSource    Optional: A program or GFA source file, a directory or a zip archive to synchronize into the GEMDOS drive.
+     */
+    public DesktopWindow startEmulator(HatariInstance instance,
+                                       File memorySnapshotFile,
+                                       File programOrSource) {
+        return startEmulator(instance, memorySnapshotFile, programOrSource, null, null);
+    }
+
+    /**
+     * Launches the emulator of the given instance. On Windows, waits for up to 2 seconds
+     * for the emulator window to appear. To wait for the emulator to be booted up and
+     * ready to use, see {@link #startSession(HatariInstance, File, File, File, File)}.
+     *
+     * @param instance           The emulator instance to start.
+     * @param memorySnapshotFile Optional: Memory snapshot file to start the emulator with.
+     * @param programOrSource    Optional: A program or GFA source file, a directory or a zip archive to synchronize into the GEMDOS drive.
+     * @param imageFloppyA       Optional: A floppy image file for drive A.
+     * @param imageFloppyB       Optional: A floppy image file for drive B.
+     */
+    public DesktopWindow startEmulator(HatariInstance instance,
+                                       File memorySnapshotFile,
+                                       File programOrSource,
+                                       File imageFloppyA,
+                                       File imageFloppyB) {
+        HatariSession session = sessions.get(instance);
+        if (session != null && session.getWindow() != null) {
+            // Emulator already running, return reference to open window
+            return session.getWindow();
+        }
+        session = launchSession(instance, memorySnapshotFile, programOrSource, imageFloppyA, imageFloppyB);
+
+        DesktopWindow result = session.window().join();
+        if (result == null && isWindowLookupEnabled(instance)) {
+            // For some reason, the emulator window handle could not be obtained - kill the emulator and raise an exception
+            stopEmulator(instance);
+            throw new RuntimeException("Failed to obtain handle of emulator window!");
+        }
+        System.out.println("> Resulting desktop window: " + result);
+        return result;
+    }
+
+    /**
+     * Launches the emulator of the given instance.
+     *
+     * @param instance The emulator instance to start.
+     * @return Future which completes with the session once the emulator is ready.
+     */
+    public CompletableFuture<HatariSession> startSession(HatariInstance instance) {
+        return startSession(instance, null, null, null, null);
+    }
+
+    /**
+     * Launches the emulator of the given instance. Returns immediately after launching
+     * the emulator process; the returned future completes as soon as the emulated system
+     * has booted up, see {@link HatariSession#ready()}.
+     *
+     * @param instance           The emulator instance to start.
+     * @param memorySnapshotFile Optional: Memory snapshot file to start the emulator with.
+     * @param programOrSource    Optional: A program or GFA source file, a directory or a zip archive to synchronize into the GEMDOS drive.
+     * @param imageFloppyA       Optional: A floppy image file for drive A.
+     * @param imageFloppyB       Optional: A floppy image file for drive B.
+     * @return Future which completes with the session once the emulator is ready.
+     */
+    public CompletableFuture<HatariSession> startSession(HatariInstance instance,
+                                                        File memorySnapshotFile,
+                                                        File programOrSource,
+                                                        File imageFloppyA,
+                                                        File imageFloppyB) {
+        return launchSession(instance, memorySnapshotFile, programOrSource, imageFloppyA, imageFloppyB).ready();
+    }
+
+    /**
+     * Launches the emulator of the given instance, and starts the given program at boot, using
+     * the auto-start facility of Hatari. The emulator is always booted, as a program cannot be
+     * auto-started when resuming from a memory snapshot. Native features are enabled, so the
+     * program can terminate the emulator with NF_EXIT or NF_SHUTDOWN.
+     *
+     * @param instance        The emulator instance to start.
+     * @param programOrSource A program, a directory or a zip archive to synchronize into the GEMDOS drive.
+     * @param autoStart       The path of the program to start, relative to drive "C:" (e.g. "BIN/MAKE.PRG").
+     * @return Future which completes with the session once the emulator is ready.
+     */
+    public CompletableFuture<HatariSession> startSession(HatariInstance instance,
+                                                        File programOrSource,
+                                                        String autoStart) {
+        synchronized (launchLocks.computeIfAbsent(instance, i -> new Object())) {
+            return launchEmulator(instance, null, programOrSource, null, null,
+                    getAutoStartArguments(autoStart)).ready();
+        }
+    }
+
+    /**
+     * Runs the given job in a freshly started emulator, and waits until it is done. The result
+     * files are collected into the folder "results" of the work directory.
+     *
+     * @param job The job to run.
+     * @return The result of the job.
+     */
+    public HatariJobResult run(HatariJob job) {
+        return run(job, new File(workDirectory, "results"));
+    }
+
+    /**
+     * Runs the given job in a freshly started emulator, and waits until it is done: until the
+     * program has completely written all expected files and printed the expected output, or,
+     * if nothing is expected, until the emulator terminates: The program ends the emulator
+     * with the native features NF_EXIT (its exit code becomes the exit code of the emulator)
+     * or NF_SHUTDOWN. If this takes longer than the timeout of the job, the emulator is killed. The expected files are copied into "&lt;result directory&gt;/&lt;job name&gt;/",
+     * and the emulator and its sandbox are removed afterwards.
+     *
+     * @param job             The job to run.
+     * @param resultDirectory The directory into which the result files are collected.
+     * @return The result of the job (never throws an exception for a failed job).
+     */
+    public HatariJobResult run(HatariJob job, File resultDirectory) {
+        // Every run gets its own emulator and sandbox, even if the same job runs several times at once
+        HatariInstance instance = job.getInstance().toBuilder()
+                .label("job" + jobCounter.incrementAndGet() + "-" + job.getName())
+                .consoleOutput(job.getInstance().isConsoleOutput() || job.getExpectedOutput() != null)
+                .build();
+        long start = System.nanoTime();
+        HatariJobResult.Status status;
+        String message = null;
+        String outputLine = null;
+        OptionalInt exitCode = OptionalInt.empty();
+        List<File> files = Collections.emptyList();
+        try {
+            HatariSandbox sandbox = getOrCreateSandbox(instance);
+            // Don't mistake files of a previous run for results
+            job.getExpectedFiles().forEach(path -> getDriveCFile(sandbox, path).delete());
+
+            System.out.println(">> Start job " + job.getName());
+            HatariSession session = launchEmulator(instance, null, job.getProgram(), null, null,
+                    getAutoStartArguments(job.getAutoStart()));
+
+            List<CompletableFuture<?>> conditions = new ArrayList<>();
+            job.getExpectedFiles().forEach(path -> conditions.add(session.awaitStableFile(path)));
+            CompletableFuture<String> output = null;
+            if (job.getExpectedOutput() != null) {
+                output = awaitOutput(session, job.getExpectedOutput());
+                conditions.add(output);
+            }
+            CompletableFuture<?> done = conditions.isEmpty() ? session.onExit()
+                    : CompletableFuture.allOf(conditions.toArray(new CompletableFuture<?>[0]));
+            try {
+                done.get(job.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+                exitCode = session.getExitCode();
+                if (conditions.isEmpty() && exitCode.orElse(0) != 0) {
+                    status = HatariJobResult.Status.failed;
+                    message = "emulator exit code " + exitCode.getAsInt();
+                } else {
+                    status = HatariJobResult.Status.passed;
+                }
+            } catch (TimeoutException e) {
+                status = HatariJobResult.Status.timeout;
+                message = "timeout after " + job.getTimeoutMillis() + " ms";
+            } catch (ExecutionException e) {
+                exitCode = session.getExitCode();
+                status = HatariJobResult.Status.failed;
+                message = e.getCause().getMessage();
+            }
+            if (output != null) {
+                outputLine = output.getNow(null);
+            }
+            files = collectFiles(job, sandbox, resultDirectory);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = HatariJobResult.Status.failed;
+            message = "interrupted";
+        } catch (RuntimeException e) {
+            status = HatariJobResult.Status.failed;
+            message = e.getMessage();
+        } finally {
+            deleteSandbox(instance);
+        }
+        HatariJobResult result = new HatariJobResult(job, status,
+                Duration.ofNanos(System.nanoTime() - start), files, outputLine, exitCode, message);
+        System.out.println(">> Finished job " + result);
+        return result;
+    }
+
+    /**
+     * Returns the emulator arguments to start the given program at boot. Native features are
+     * enabled, as they are the only way for the program to terminate the emulator by itself.
+     */
+    private static List<String> getAutoStartArguments(String autoStart) {
+        List<String> args = new ArrayList<>(Arrays.asList("--natfeats", "true"));
+        if (autoStart != null) {
+            args.add("--auto");
+            args.add("C:\\" + autoStart.replace('/', '\\'));
+        }
+        return args;
+    }
+
+    /**
+     * Waits for console output matching the given pattern, including output the emulator
+     * may already have written before the listener was registered.
+     */
+    private static CompletableFuture<String> awaitOutput(HatariSession session, Pattern pattern) {
+        CompletableFuture<String> output = session.awaitConsoleOutput(pattern);
+        session.getOutput().stream()
+                .filter(line -> pattern.matcher(line).find())
+                .findFirst()
+                .ifPresent(output::complete);
+        return output;
+    }
+
+    /**
+     * Copies the expected files which exist in drive "C:" into the result directory of the job.
+     */
+    private static List<File> collectFiles(HatariJob job, HatariSandbox sandbox, File resultDirectory) {
+        List<File> files = new ArrayList<>();
+        File jobDirectory = new File(resultDirectory, job.getName().replaceAll("[^A-Za-z0-9._-]", "_"));
+        for (String path : job.getExpectedFiles()) {
+            File file = getDriveCFile(sandbox, path);
+            if (!file.isFile()) {
+                continue;
+            }
+            File target = new File(jobDirectory, path.replace('\\', '/'));
+            try {
+                Files.createDirectories(target.getParentFile().toPath());
+                Files.copy(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to collect result file " + path + " of job " + job.getName() + ": " + e, e);
+            }
+            files.add(target);
+        }
+        return files;
+    }
+
+    private static File getDriveCFile(HatariSandbox sandbox, String path) {
+        return new File(sandbox.getDriveC(), path.replace('\\', '/'));
+    }
+
+    /**
+     * Returns the session of the given running emulator instance.
+     *
+     * @param instance The emulator instance.
+     * @return The session, or null if the emulator is not running.
+     */
+    public HatariSession getSession(HatariInstance instance) {
+        return sessions.get(instance);
+    }
+
+    /**
+     * @return The sessions of all emulators of this runtime which are currently running.
+     */
+    public List<HatariSession> getSessions() {
+        return Collections.unmodifiableList(new ArrayList<>(sessions.values()));
+    }
+
+    /**
+     * Launches the emulator of the given instance (from the snapshot cache, if set), unless it is already running.
+     *
+     * @return The session of the emulator.
+     */
+    HatariSession launchSession(HatariInstance instance,
+                                File memorySnapshotFile,
+                                File programOrSource,
+                                File imageFloppyA,
+                                File imageFloppyB) {
+        synchronized (launchLocks.computeIfAbsent(instance, i -> new Object())) {
+            HatariSession session = sessions.get(instance);
+            if (session != null && session.isRunning()) {
+                // Emulator already running
+                return session;
+            }
+            HatariSnapshotCache cache = snapshotCache;
+            if (memorySnapshotFile == null && cache != null) {
+                memorySnapshotFile = cache.getOrCreateSnapshot(this, instance);
+            }
+            return launchEmulator(instance, memorySnapshotFile, programOrSource, imageFloppyA, imageFloppyB,
+                    Collections.emptyList());
+        }
+    }
+
+    /**
+     * Launches the emulator of the given instance.
+     *
+     * @param instance           The emulator instance to start.
+     * @param memorySnapshotFile Optional: Memory snapshot file to start the emulator with.
+     * @param programOrSource    Optional: A program or GFA source file, a directory or a zip archive to synchronize into the GEMDOS drive.
+     * @param imageFloppyA       Optional: A floppy image file for drive A.
+     * @param imageFloppyB       Optional: A floppy image file for drive B.
+     * @param extraArguments     Arguments to pass to the emulator before all other arguments. A drive "C:"
+     *                           folder given with "-d" replaces the one of the sandbox.
+     * @return The session of the launched emulator.
+     */
+    HatariSession launchEmulator(HatariInstance instance,
+                                 File memorySnapshotFile,
+                                 File programOrSource,
+                                 File imageFloppyA,
+                                 File imageFloppyB,
+                                 List<String> extraArguments) {
+        checkOpen();
+
+        Map<WinDef.HWND, DesktopWindow> alreadyOpenWindows = new HashMap<>();
+        if (isWindowLookupEnabled(instance)) {
+            WindowUtils.getAllWindows(true).stream().forEach(w -> alreadyOpenWindows.put(w.getHWND(), w));
+        }
+
+        HatariSession previous = sessions.get(instance);
+        if (previous != null) {
+            // Instance of this type already running - try to kill it first
+            previous.kill();
+        }
+
+        HatariSandbox sandbox = getOrCreateSandbox(instance);
+        System.out.println(">> Start emulator in: " + sandbox.getDirectory().getAbsolutePath());
+
+        HatariInstallation installation = getInstallation();
+        ArrayList<String> args = new ArrayList<>();
+        args.add(installation.getExecutable().getAbsolutePath());
+        // All settings of the instance not passed on the commandline
+        args.add("--configfile");
+        args.add(configCache.getConfigFile(instance).getAbsolutePath());
+        args.addAll(extraArguments);
+
+        // Start with the drive folder of the sandbox as GEMDOS drive C:
+        if (!extraArguments.contains("-d")) {
+            args.add("-d");
+            args.add(sandbox.getDriveC().getAbsolutePath());
+        }
+
+        // Enable remote control through the command FIFO, where available
+        File controlFifo = sandbox.getControlFifo();
+        boolean controlSupported = isControlSupported();
+        if (controlSupported) {
+            controlFifo.delete();
+            args.add("--cmd-fifo");
+            args.add(controlFifo.getAbsolutePath());
+        }
+
+        addFloppyParameters(args, imageFloppyA, "a");
+        addFloppyParameters(args, imageFloppyB, "b");
+
+        // Optional: Start with memory snapshot
+        boolean fromMemorySnapshot = memorySnapshotFile != null && memorySnapshotFile.isFile();
+        if (fromMemorySnapshot) {
+            args.add("--memstate");
+            args.add(memorySnapshotFile.getAbsolutePath());
+        } else {
+            // Trace GEMDOS calls to detect when TOS has booted to the desktop
+            args.add("--trace");
+            args.add("gemdos");
+        }
+
+        // Add all additional arguments based on instance settings
+        args.addAll(instance.getRuntimeArguments(sandbox));
+
+
+        if (programOrSource != null && programOrSource.exists()) {
+            ChangeSet changes = sandbox.syncDriveC(programOrSource);
+            System.out.println(">> Synced " + programOrSource.getAbsolutePath() + " to drive C: " + changes);
+        }
+
+        // Leave out options which a system emulator doesn't support
+        List<String> supportedArgs = new ArrayList<>();
+        supportedArgs.add(args.get(0));
+        supportedArgs.addAll(installation.filterArguments(args.subList(1, args.size())));
+        String[] finalArgs = supportedArgs.toArray(new String[0]);
+
+        System.out.println("------------- emulator arguments ---------\n\r");
+        Arrays.asList(finalArgs).stream().forEach(arg -> System.out.print(arg + " "));
+        System.out.println("\n\r------------------------------------------");
+
+        ProcessBuilder pb = new ProcessBuilder(finalArgs);
+        pb.directory(sandbox.getDirectory().getAbsoluteFile());
+        if (instance.isHeadless()) {
+            // Let SDL render into / play to nowhere, so no display or audio device is required
+            pb.environment().put("SDL_VIDEODRIVER", "dummy");
+            pb.environment().put("SDL_AUDIODRIVER", "dummy");
+        }
+        HatariSession session;
+        try {
+            Process p = pb.start();
+            HatariControl control = controlSupported ? new HatariControl(controlFifo) : null;
+            // Without GEMDOS tracing, the boot cannot be detected - consider the emulator ready once started
+            boolean bootDetectable = installation.isOptionSupported("--trace");
+            session = new HatariSession(instance, sandbox, p, control, fromMemorySnapshot || !bootDetectable,
+                    outputBufferLines);
+            sessions.put(instance, session);
+            HatariSession launched = session;
+            session.onExit().thenRun(() -> sessions.remove(instance, launched));
+        } catch (Exception e) {
+            stopEmulator(instance);
+            throw new RuntimeException("Failed to start the emulator: " + e, e);
+        }
+        if (closed) {
+            // Closed while launching - don't leave the emulator behind
+            session.kill();
+        }
+
+        // Only do this for platforms where this JNA functionality is implemented
+        if (isWindowLookupEnabled(instance) && !alreadyOpenWindows.isEmpty()) {
+            // Try to get handle of emulator window for up to 2 seconds, in the background
+            lookupWindow(session, alreadyOpenWindows, System.currentTimeMillis() + 2000);
+        } else {
+            session.setWindow(null);
+        }
+        return session;
+    }
+
+    private static boolean isWindowLookupEnabled(HatariInstance instance) {
+        // Headless emulators have no window, so don't touch the desktop at all
+        return !instance.isHeadless() && PlatformUtil.getOperatingSystemType() == PlatformUtil.OSType.Windows;
+    }
+
+    /**
+     * Looks for the window of the given emulator session, and keeps looking every 50 ms
+     * (without blocking the caller) until it has been found or the deadline has passed.
+     */
+    private static void lookupWindow(HatariSession session,
+                                     Map<WinDef.HWND, DesktopWindow> alreadyOpenWindows,
+                                     long deadline) {
+        try {
+            List<DesktopWindow> windows = WindowUtils.getAllWindows(true);
+            for (DesktopWindow desktopWindow : windows) {
+                // Make sure it's not a window that was open before (like one from an already running Hatari instance)
+                if (alreadyOpenWindows.get(desktopWindow.getHWND()) == null) {
+                    // Check if it's a Hatari window
+                    if (desktopWindow.getTitle().startsWith("Hatari v")) {
+                        session.setWindow(desktopWindow);
+                        return;
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.out.println(">> Failed to look up emulator window: " + e);
+            session.setWindow(null);
+            return;
+        }
+        if (System.currentTimeMillis() >= deadline || !session.isRunning()) {
+            session.setWindow(null);
+        } else {
+            HatariSession.SCHEDULER.schedule(() -> lookupWindow(session, alreadyOpenWindows, deadline),
+                    50, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void addFloppyParameters(ArrayList<String> args, File floppyImage, String driveLetter) {
+        args.add("--drive-" + driveLetter);
+        if(floppyImage == null) {
+            args.add("off");
+        } else {
+            args.add("on");
+            args.add("--disk-" + driveLetter);
+            args.add(floppyImage.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Returns the sandbox of the given instance. Each instance keeps its sandbox
+     * (and therefore the contents of its drive "C:") across restarts. The sandbox
+     * directory is named after the instance label; if another instance with the
+     * same label already owns that directory, or it is locked by another runtime
+     * (e.g. in another JVM using the same work directory), a numbered suffix is added.
+     *
+     * @param instance The emulator instance.
+     * @return The prepared sandbox.
+     */
+    synchronized HatariSandbox getOrCreateSandbox(HatariInstance instance) {
+        HatariSandbox sandbox = sandboxes.get(instance);
+        if (sandbox == null) {
+            File sandboxRoot = new File(workDirectory, "sandboxes");
+            String name = instance.getLabel().replaceAll("[^A-Za-z0-9._-]", "_");
+            File directory = new File(sandboxRoot, name);
+            sandbox = new HatariSandbox(directory);
+            for (int suffix = 2; isSandboxInUse(directory) || !sandbox.lock(); suffix++) {
+                directory = new File(sandboxRoot, name + "-" + suffix);
+                sandbox = new HatariSandbox(directory);
+            }
+            sandboxes.put(instance, sandbox);
+        }
+        sandbox.prepare(tosStore.getImage(instance.getTos()));
+        return sandbox;
+    }
+
+    private boolean isSandboxInUse(File directory) {
+        return sandboxes.values().stream()
+                .anyMatch(sandbox -> sandbox.getDirectory().equals(directory));
+    }
+
+    /**
+     * Returns the sandbox of the given instance, which contains its GEMDOS drive
+     * "C:" folder and log files.
+     *
+     * @param instance The emulator instance.
+     * @return The sandbox, or null if the instance was never started.
+     */
+    public HatariSandbox getSandbox(HatariInstance instance) {
+        return sandboxes.get(instance);
+    }
+
+    /**
+     * Stops the given emulator instance, if it is still running, and deletes its sandbox.
+     *
+     * @param instance The emulator instance.
+     */
+    public void deleteSandbox(HatariInstance instance) {
+        HatariSession session = sessions.remove(instance);
+        if (session != null) {
+            // Wait for the emulator to terminate, so it doesn't keep any files open
+            session.kill().join();
+        }
+        HatariSandbox sandbox;
+        synchronized (this) {
+            sandbox = sandboxes.remove(instance);
+        }
+        launchLocks.remove(instance);
+        if (sandbox != null) {
+            sandbox.delete();
+        }
+    }
+
+    /**
+     * Stops all open emulator instances.
+     */
+    public void stopEmulators() {
+        System.out.println(">> Shutting down all Hatari instances");
+        for (HatariInstance instance : new ArrayList<>(sessions.keySet())) {
+            HatariSession session = sessions.remove(instance);
+            if (session != null) {
+                session.kill();
+            }
+        }
+    }
+
+    /**
+     * Stops the given emulator instance, if it is still running.
+     *
+     * @param instance The emulator instance to stop.
+     */
+    public void stopEmulator(HatariInstance instance) {
+        HatariSession session = sessions.remove(instance);
+        if (session != null) {
+            System.out.println(">> Shutting down Hatari instance " + instance.getLabel());
+            session.kill();
+        }
+    }
+
+    /**
+     * Asks the emulator of the given instance to shut down, and waits for it to
+     * terminate. If it does not terminate in time, it is killed.
+     * <p></p>
+     * NOTE: On Windows, there is no way to request a clean shutdown of a process,
+     * so the emulator is killed right away.
+     *
+     * @param instance      The emulator instance to shut down.
+     * @param timeoutMillis The time to wait for the emulator to terminate.
+     */
+    void shutdownEmulator(HatariInstance instance, long timeoutMillis) {
+        HatariSession session = sessions.remove(instance);
+        if (session != null) {
+            System.out.println(">> Shutting down Hatari instance " + instance.getLabel());
+            session.stop(timeoutMillis, TimeUnit.MILLISECONDS).join();
+        }
+    }
+
+    /**
+     * Returns the remote control client of the given running emulator instance. It allows
+     * to send key presses, shortcuts etc. directly to the emulator, regardless of which
+     * window has the focus. See {@link HatariControl}.
+     * <p></p>
+     * NOTE: Currently not available on Windows.
+     *
+     * @param instance The emulator instance.
+     * @return The remote control, or null if the emulator is not running or the platform doesn't support it.
+     */
+    public HatariControl getControl(HatariInstance instance) {
+        HatariSession session = sessions.get(instance);
+        return session == null ? null : session.getControl();
+    }
+
+    /**
+     * @return True if the emulators of this runtime can be remote controlled through the command FIFO.
+     */
+    public boolean isControlSupported() {
+        PlatformUtil.OSType osType = PlatformUtil.getOperatingSystemType();
+        return osType != PlatformUtil.OSType.Windows && osType != PlatformUtil.OSType.Other
+                && getInstallation().isOptionSupported("--cmd-fifo");
+    }
+
+    /**
+     * Sends a keyboard shortcut to the window of the given emulator instance.
+     *
+     * @param instance The emulator instance.
+     * @param keys     The key codes to press together.
+     * @return True if the shortcut was sent, false if the emulator window is not known.
+     */
+    boolean sendShortcut(HatariInstance instance, int... keys) {
+        DesktopWindow window = getEmulatorWindow(instance);
+        if (window == null || instance.isHeadless()) {
+            return false;
+        }
+        pressKeysTogether(getRobot(), window.getHWND(), keys);
+        return true;
+    }
+
+    /**
+     * Returns the robot used for keyboard input, creating it on first use.
+     *
+     * @return The robot instance.
+     */
+    private static synchronized Robot getRobot() {
+        if (robot == null) {
+            if (GraphicsEnvironment.isHeadless()) {
+                throw new IllegalStateException("Keyboard input is not available in a headless environment");
+            }
+            try {
+                robot = new Robot();
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to initialize robot API", e);
+            }
+        }
+        return robot;
+    }
+
+    /**
+     * Checks if the emulator of the given instance is currently running.
+     *
+     * @param instance The emulator instance to check.
+     * @return True if the emulator process of the instance is alive.
+     */
+    public boolean isRunning(HatariInstance instance) {
+        HatariSession session = sessions.get(instance);
+        return session != null && session.isRunning();
+    }
+
+    /**
+     * Returns the desktop window of the given running emulator instance.
+     *
+     * @param instance The emulator instance.
+     * @return The emulator window, or null if it is not running or the window is unknown.
+     */
+    public DesktopWindow getEmulatorWindow(HatariInstance instance) {
+        HatariSession session = sessions.get(instance);
+        return session == null ? null : session.getWindow();
+    }
+
+    /**
+     * @return True if this runtime has been closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Kills all emulators of this runtime and waits for them to terminate. Afterwards,
+     * no more emulators can be started with this runtime. The sandboxes are kept, but
+     * released for other runtimes.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        OPEN_RUNTIMES.remove(this);
+        List<HatariSession> running = new ArrayList<>(sessions.values());
+        stopEmulators();
+        running.forEach(session -> session.onExit().join());
+        sandboxes.values().forEach(HatariSandbox::release);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Hatari runtime is closed");
+        }
+    }
+
+    /**
+     * Kills the emulators of all open runtimes, when the JVM terminates.
+     */
+    private static void killAll() {
+        List<CompletableFuture<HatariSession>> exits = new ArrayList<>();
+        for (HatariRuntime runtime : OPEN_RUNTIMES) {
+            runtime.closed = true;
+            runtime.sessions.values().forEach(session -> exits.add(session.kill()));
+        }
+        try {
+            CompletableFuture.allOf(exits.toArray(new CompletableFuture<?>[0])).get(2, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            // The JVM terminates anyway
+        }
+    }
+
+    /**
+     * Performs some key presses in the given window, using the Java Robot API. This method
+     * will first invoke "keyPress()" on all given keys (effectively pressing the all at the same time),
+     * and then "keyRelease()" on all of them. This should be used to simulate shortcut keypressed,
+     * like pressing "ALT_GR" together with "l" to load a memory shortcut.
+     *
+     * @param robot  The Robot instance.
+     * @param window The window (will be brought to the foreground).
+     * @param keys   The list of key codes to send to the window.
+     */
+    private static void pressKeysTogether(Robot robot, WinDef.HWND window, int... keys) {
+        try {
+            // NOTE: Currently only works on Windows
+            if(PlatformUtil.getOperatingSystemType() == PlatformUtil.OSType.Windows) {
+                User32.INSTANCE.SetFocus(window);
+                User32.INSTANCE.SetForegroundWindow(window);
+            }
+            for (int key : keys) {
+                robot.keyPress(key);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("** Failed to enter keyboard presses **");
+        } finally {
+            Arrays.stream(keys).forEach(k -> robot.keyRelease(k));
+        }
+    }
+}
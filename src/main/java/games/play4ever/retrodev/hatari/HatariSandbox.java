@@ -0,0 +1,222 @@
+package games.play4ever.retrodev.hatari;
+
+import games.play4ever.retrodev.util.ChangeSet;
+import games.play4ever.retrodev.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The private working area of one emulator instance. Every running instance
+ * gets its own directory with its own GEMDOS drive "C:" folder and command FIFO,
+ * while the emulator executable and the TOS images (see {@link TosStore}) are
+ * shared by all instances and only read from. The output of the emulator is kept
+ * in memory, and only written into the sandbox if the emulator failed. This allows
+ * to run any number of emulators in parallel without them overwriting each others files.
+ * <p></p>
+ * A sandbox in use is guarded by a file lock, so runtimes in other JVMs working in the same
+ * directory (or other runtimes of the same JVM) don't use it at the same time.
+ * <p></p>
+ * Layout of a sandbox directory:
+ * <ul>
+ * <li>drivec/ - mounted as GEMDOS drive "C:"</li>
+ * <li>output.log / error.log - standard output and error (including the Hatari log) of
+ * the emulator process; only written if the emulator failed, see {@link HatariSession#dumpOutput()}</li>
+ * <li>control.fifo - the command FIFO for remote control of the emulator</li>
+ * <li>drivec.sync - the files synchronized into drive "C:" by the last run, see {@link #syncDriveC(File)}</li>
+ * <li>sandbox.lock - locked while the sandbox is in use</li>
+ * </ul>
+ *
+ * @author Marcel Schoen
+ */
+public class HatariSandbox {
+
+    private final File directory;
+
+    private File tosImage;
+
+    private FileChannel lockChannel;
+
+    /**
+     * Creates a sandbox in the given directory.
+     *
+     * @param directory The sandbox directory.
+     */
+    HatariSandbox(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Creates the sandbox directory, if it doesn't exist yet, and sets the
+     * TOS image to use for the next run.
+     *
+     * @param tosImage The TOS image file (from the {@link TosStore}).
+     */
+    void prepare(File tosImage) {
+        directory.mkdirs();
+        File driveC = getDriveC();
+        if (!driveC.isDirectory()) {
+            driveC.mkdirs();
+            File harddiscFolder = new File("src/resources/java/hatari/gfa_hdd");
+            if (harddiscFolder.isDirectory()) {
+                // Prepare runtime harddisc folder by copying the
+                // given source folder into the sandbox
+                FileUtil.copyDirectory(harddiscFolder, driveC);
+            }
+        }
+        this.tosImage = tosImage;
+    }
+
+    /**
+     * Synchronizes the given program (file, directory or zip archive) into drive "C:".
+     * Only new or changed files are copied, and files which were synchronized by a
+     * previous run but no longer exist in the source are deleted. Other files on the
+     * drive, e.g. files created by programs in the emulator, are left alone.
+     *
+     * @param programOrSource The program file, source directory or zip archive.
+     * @return The changes made to drive "C:".
+     */
+    public ChangeSet syncDriveC(File programOrSource) {
+        File stateFile = getSyncState();
+        List<String> previous = Collections.emptyList();
+        try {
+            if (stateFile.isFile()) {
+                previous = Files.readAllLines(stateFile.toPath(), StandardCharsets.UTF_8);
+            }
+            ChangeSet changes;
+            if (programOrSource.isFile() && programOrSource.getName().toLowerCase().endsWith(".zip")) {
+                changes = FileUtil.syncZip(programOrSource, getDriveC(), previous);
+            } else {
+                changes = FileUtil.syncDirectory(programOrSource, getDriveC(), previous);
+            }
+            Files.write(stateFile.toPath(), changes.getSyncedPaths(), StandardCharsets.UTF_8);
+            return changes;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to sync " + programOrSource + " to drive C: " + e, e);
+        }
+    }
+
+    /**
+     * Creates the sandbox directory, if it doesn't exist yet, and locks it for this sandbox.
+     * The lock is held until the sandbox is released or deleted.
+     *
+     * @return True if the sandbox is locked, false if it is in use by someone else.
+     */
+    synchronized boolean lock() {
+        if (lockChannel != null) {
+            return true;
+        }
+        directory.mkdirs();
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(getLockFile().toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                lockChannel = channel;
+                return true;
+            }
+        } catch (OverlappingFileLockException e) {
+            // Locked by another runtime of this JVM
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to lock sandbox " + directory + ": " + e, e);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Not locked anyway
+        }
+        return false;
+    }
+
+    /**
+     * Releases the lock of the sandbox, so it can be used by others. The contents are kept.
+     */
+    synchronized void release() {
+        if (lockChannel != null) {
+            try {
+                lockChannel.close();
+            } catch (IOException e) {
+                System.out.println(">> Failed to unlock sandbox " + directory + ": " + e);
+            }
+            lockChannel = null;
+        }
+    }
+
+    /**
+     * Deletes the sandbox directory with all its contents.
+     */
+    public void delete() {
+        release();
+        FileUtil.deleteDir(directory);
+    }
+
+    /**
+     * @return The sandbox directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return The folder which is mounted as GEMDOS drive "C:".
+     */
+    public File getDriveC() {
+        return new File(directory, "drivec");
+    }
+
+    /**
+     * @return The TOS image used by the emulator (a shared file of the {@link TosStore}).
+     */
+    public File getTosImage() {
+        return tosImage;
+    }
+
+    /**
+     * @return The file which lists the files synchronized into drive "C:" by the last run.
+     */
+    public File getSyncState() {
+        return new File(directory, "drivec.sync");
+    }
+
+    /**
+     * @return The file into which the standard output of a failed emulator is written.
+     */
+    public File getOutputLog() {
+        return new File(directory, "output.log");
+    }
+
+    /**
+     * @return The file into which the error output (including the Hatari log) of a failed emulator is written.
+     */
+    public File getErrorLog() {
+        return new File(directory, "error.log");
+    }
+
+    /**
+     * @return The file which is locked while the sandbox is in use.
+     */
+    public File getLockFile() {
+        return new File(directory, "sandbox.lock");
+    }
+
+    /**
+     * @return The command FIFO for remote control of the emulator.
+     */
+    public File getControlFifo() {
+        return new File(directory, "control.fifo");
+    }
+
+    @Override
+    public String toString() {
+        return directory.getAbsolutePath();
+    }
+}
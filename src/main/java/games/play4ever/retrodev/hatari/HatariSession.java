@@ -0,0 +1,628 @@
+package games.play4ever.retrodev.hatari;
+
+import com.sun.jna.platform.DesktopWindow;
+
+import games.play4ever.retrodev.util.LineBuffer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * A running emulator, as returned by {@link HatariWrapper#startSession(HatariInstance)}.
+ * <p></p>
+ * The session tells when the emulator is ready to be used: {@link #ready()} completes
+ * once the emulated system has booted up to the desktop, which is detected from the
+ * GEMDOS trace output of the emulator (TOS reading its desktop configuration file).
+ * When the emulator is resumed from a memory snapshot, it is ready as soon as it
+ * accepts remote control commands. For programs which signal their state themselves,
+ * the session can also wait for specific output or for a marker file in drive "C:".
+ * <p></p>
+ * The session also supervises the emulator process: it tells when and how the emulator
+ * terminated ({@link #onExit()}), can stop it gracefully with a fallback to killing it,
+ * and can install a watchdog which kills emulators that run too long or hang.
+ * <p></p>
+ * If the console output of the emulated system is redirected (see
+ * {@link HatariInstance#isConsoleOutput()}), whatever the Atari program prints is
+ * streamed line by line to the subscribers of {@link #getConsole()} while it runs,
+ * together with the messages Hatari itself writes to its standard output.
+ * Files written into drive "C:" are reported by the {@link #getDriveWatcher()}.
+ * <p></p>
+ * Usage:
+ * <pre>
+ * HatariSession session = HatariWrapper.startSession(instance).get(30, TimeUnit.SECONDS);
+ * session.awaitFile("RESULT.TXT").get(60, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * @author Marcel Schoen
+ */
+public class HatariSession {
+
+    /**
+     * Output line indicating that TOS has booted to the desktop: the GEMDOS trace of
+     * the desktop configuration file being opened (TOS 1.x/2.x/EmuTOS variants).
+     */
+    static final Pattern BOOTED_PATTERN = Pattern.compile("(?i)(DESKTOP|NEWDESK|EMUDESK)\\.INF");
+
+    /**
+     * VT52 escape sequences in the console output (cursor positioning "ESC Y row col",
+     * colors "ESC b/c color", and all other single character commands).
+     */
+    private static final Pattern CONSOLE_ESCAPE_PATTERN = Pattern.compile("\u001B(Y..|[bc].|.)");
+
+    /**
+     * Scheduler for short periodic background tasks of all sessions.
+     */
+    static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "hatari-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HatariInstance instance;
+    private final HatariSandbox sandbox;
+    private final Process process;
+    private final HatariControl control;
+
+    private final CompletableFuture<HatariSession> ready = new CompletableFuture<>();
+    private final CompletableFuture<DesktopWindow> window = new CompletableFuture<>();
+    private final List<Consumer<String>> lineListeners = new CopyOnWriteArrayList<>();
+
+    private final List<Consumer<String>> consoleListeners = new CopyOnWriteArrayList<>();
+    private final LineBuffer output;
+    private final LineBuffer errorOutput;
+    private final SubmissionPublisher<String> console = new SubmissionPublisher<>();
+    private final AtomicLong droppedConsoleLines = new AtomicLong();
+    private final CompletableFuture<Process> terminated = new CompletableFuture<>();
+    private final CompletableFuture<HatariSession> exit = new CompletableFuture<>();
+
+    private final Instant startTime;
+    private volatile Instant endTime;
+    private volatile String killReason;
+    private volatile boolean stopRequested = false;
+    private ScheduledFuture<?> hangCheck;
+    private DriveWatcher driveWatcher;
+
+    /**
+     * Creates the session of a freshly started emulator process.
+     *
+     * @param instance         The emulator instance.
+     * @param sandbox          The sandbox the emulator runs in.
+     * @param process          The emulator process.
+     * @param control          The remote control, or null if not available.
+     * @param fromMemorySnapshot True if the emulator was resumed from a memory snapshot.
+     * @param bufferedLines    The number of output lines to keep in memory, per stream.
+     */
+    HatariSession(HatariInstance instance,
+                  HatariSandbox sandbox,
+                  Process process,
+                  HatariControl control,
+                  boolean fromMemorySnapshot,
+                  int bufferedLines) {
+        this.instance = instance;
+        this.output = new LineBuffer(bufferedLines);
+        this.errorOutput = new LineBuffer(bufferedLines);
+        this.sandbox = sandbox;
+        this.process = process;
+        this.control = control;
+        this.startTime = process.info().startInstant().orElse(Instant.now());
+
+        if (fromMemorySnapshot) {
+            if (control != null) {
+                control.connected().thenRun(() -> ready.complete(this));
+            } else {
+                ready.complete(this);
+            }
+        } else {
+            awaitOutput(BOOTED_PATTERN).thenRun(() -> {
+                if (control != null) {
+                    // Booted - no need to keep tracing every GEMDOS call
+                    control.debug("trace none");
+                }
+                ready.complete(this);
+            });
+        }
+        terminated.thenRun(() -> {
+            endTime = Instant.now();
+            if (hangCheck != null) {
+                hangCheck.cancel(false);
+            }
+            if (control != null) {
+                control.close();
+            }
+            console.close();
+            if ((process.exitValue() != 0 && !stopRequested) || killReason != null) {
+                // Keep the output of failed runs for the post-mortem
+                dumpOutput();
+            }
+            exit.complete(this);
+            ready.completeExceptionally(new IllegalStateException("Emulator " + instance.getLabel()
+                    + " terminated with exit code " + process.exitValue() + " before it was ready"));
+            window.complete(null);
+        });
+
+        // The session counts as terminated once all output has been processed
+        CompletableFuture.allOf(
+                pumpOutput(process.getInputStream(), output,
+                        instance.isConsoleOutput() ? console : null, "output"),
+                pumpOutput(process.getErrorStream(), errorOutput, null, "error"))
+                .thenCompose(v -> process.onExit())
+                .thenAccept(terminated::complete);
+    }
+
+    /**
+     * @return The emulator instance.
+     */
+    public HatariInstance getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return The sandbox the emulator runs in.
+     */
+    public HatariSandbox getSandbox() {
+        return sandbox;
+    }
+
+    /**
+     * @return The remote control of the emulator, or null if not available on this platform.
+     */
+    public HatariControl getControl() {
+        return control;
+    }
+
+    /**
+     * @return True if the emulator process is still running.
+     */
+    public boolean isRunning() {
+        return process.isAlive();
+    }
+
+    /**
+     * Returns a future which completes with this session as soon as the emulated
+     * system has booted. It completes exceptionally if the emulator terminates before.
+     *
+     * @return The readiness future.
+     */
+    public CompletableFuture<HatariSession> ready() {
+        return ready;
+    }
+
+    /**
+     * Returns a future which completes with this session when the emulator process
+     * has terminated (for whatever reason) and all its output has been processed.
+     *
+     * @return The exit future.
+     */
+    public CompletableFuture<HatariSession> onExit() {
+        return exit;
+    }
+
+    /**
+     * @return The exit code of the emulator process, or empty if it is still running.
+     */
+    public OptionalInt getExitCode() {
+        return process.isAlive() ? OptionalInt.empty() : OptionalInt.of(process.exitValue());
+    }
+
+    /**
+     * @return The time the emulator has been running (until now, or until it terminated).
+     */
+    public Duration getUptime() {
+        Instant end = endTime;
+        return Duration.between(startTime, end == null ? Instant.now() : end);
+    }
+
+    /**
+     * @return The reason why the emulator was killed by the watchdog, or null if it wasn't.
+     */
+    public String getKillReason() {
+        return killReason;
+    }
+
+    /**
+     * Stops the emulator: first asks it to terminate, and if it is still running after
+     * the given timeout, kills it (and any processes it may have started).
+     * <p></p>
+     * NOTE: On Windows, there is no way to request a clean shutdown of a process,
+     * so the emulator is killed right away.
+     *
+     * @param timeout The time to wait for the emulator to terminate by itself.
+     * @param unit    The time unit of the timeout.
+     * @return Future which completes with this session when the emulator has terminated.
+     */
+    public CompletableFuture<HatariSession> stop(long timeout, TimeUnit unit) {
+        if (process.isAlive()) {
+            stopRequested = true;
+            process.descendants().forEach(ProcessHandle::destroy);
+            process.destroy();
+            ScheduledFuture<?> forcedStop = SCHEDULER.schedule(this::kill, timeout, unit);
+            exit.thenRun(() -> forcedStop.cancel(false));
+        }
+        return exit;
+    }
+
+    /**
+     * Kills the emulator (and any processes it may have started) immediately.
+     *
+     * @return Future which completes with this session when the emulator has terminated.
+     */
+    public CompletableFuture<HatariSession> kill() {
+        stopRequested = true;
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+        return exit;
+    }
+
+    /**
+     * Installs a watchdog which kills the emulator once it has been running for longer
+     * than the given time, e.g. to make sure that an unattended test run ends eventually.
+     *
+     * @param maxRuntime The maximum time the emulator may run.
+     * @param unit       The time unit.
+     */
+    public void setMaxRuntime(long maxRuntime, TimeUnit unit) {
+        long remaining = unit.toMillis(maxRuntime) - getUptime().toMillis();
+        exit.copy()
+                .orTimeout(Math.max(0, remaining), TimeUnit.MILLISECONDS)
+                .exceptionally(e -> {
+                    killByWatchdog("exceeded maximum runtime of " + unit.toMillis(maxRuntime) + " ms");
+                    return this;
+                });
+    }
+
+    /**
+     * Installs a watchdog which kills the emulator if it hangs: A running emulator
+     * constantly uses CPU time to emulate the machine, even if the emulated system is
+     * idle. If the CPU time of the emulator process does not increase during the given
+     * time, the emulator is considered hung.
+     *
+     * @param hangTimeout The time without CPU activity after which the emulator is killed.
+     * @param unit        The time unit.
+     */
+    public synchronized void setHangTimeout(long hangTimeout, TimeUnit unit) {
+        if (hangCheck != null) {
+            hangCheck.cancel(false);
+        }
+        Duration[] lastCpuTime = {Duration.ZERO};
+        hangCheck = SCHEDULER.scheduleWithFixedDelay(() -> {
+            Optional<Duration> cpuTime = process.info().totalCpuDuration();
+            if (!cpuTime.isPresent() || !process.isAlive()) {
+                return;
+            }
+            if (cpuTime.get().equals(lastCpuTime[0])) {
+                killByWatchdog("no CPU activity for " + unit.toMillis(hangTimeout) + " ms");
+            }
+            lastCpuTime[0] = cpuTime.get();
+        }, hangTimeout, hangTimeout, unit);
+    }
+
+    private void killByWatchdog(String reason) {
+        if (process.isAlive()) {
+            killReason = reason;
+            System.out.println(">> Watchdog kills Hatari instance " + instance.getLabel() + ": " + reason);
+            kill();
+        }
+    }
+
+    /**
+     * Returns a future which completes with the desktop window of the emulator, once
+     * it has been found. It completes with null if the window cannot be determined
+     * (headless emulators, or platforms without window support).
+     *
+     * @return The window future.
+     */
+    public CompletableFuture<DesktopWindow> window() {
+        return window;
+    }
+
+    /**
+     * @return The desktop window of the emulator, or null if not (yet) known.
+     */
+    public DesktopWindow getWindow() {
+        return window.getNow(null);
+    }
+
+    /**
+     * @return The latest lines of standard output of the emulator.
+     */
+    public List<String> getOutput() {
+        return output.getLines();
+    }
+
+    /**
+     * @return The latest lines of error output of the emulator, which includes the Hatari log.
+     */
+    public List<String> getErrorOutput() {
+        return errorOutput.getLines();
+    }
+
+    /**
+     * Writes the buffered output of the emulator into the files "output.log" and "error.log"
+     * of the sandbox. This happens automatically when the emulator terminates with an error
+     * by itself, or is killed by a watchdog.
+     */
+    public void dumpOutput() {
+        try {
+            output.writeTo(sandbox.getOutputLog());
+            errorOutput.writeTo(sandbox.getErrorLog());
+        } catch (IOException e) {
+            System.out.println(">> Failed to write output of Hatari instance " + instance.getLabel() + ": " + e);
+        }
+    }
+
+    /**
+     * Adds a listener which receives every line of emulator output (standard
+     * output and error output), as soon as it has been written.
+     *
+     * @param listener The listener.
+     */
+    public void addLineListener(Consumer<String> listener) {
+        lineListeners.add(listener);
+    }
+
+    /**
+     * Adds a listener which receives every line of emulator output (standard
+     * output and error output) matching the given pattern.
+     *
+     * @param pattern  The pattern to look for.
+     * @param listener The listener.
+     */
+    public void addLineListener(Pattern pattern, Consumer<String> listener) {
+        lineListeners.add(new PatternListener(pattern, listener));
+    }
+
+    /**
+     * Removes a listener added with one of the "addLineListener()" methods.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeLineListener(Consumer<String> listener) {
+        lineListeners.removeIf(l -> l == listener
+                || (l instanceof PatternListener && ((PatternListener) l).listener == listener));
+    }
+
+    /**
+     * Returns the console output of the emulated system, as a stream of lines (without
+     * VT52 escape sequences). Subscribers receive the lines printed after they subscribed,
+     * while the program runs; the stream completes when the emulator terminates. Lines are
+     * only published for instances with {@link HatariInstance#isConsoleOutput()} enabled.
+     * <p></p>
+     * NOTE: Hatari redirects the console into its own standard output, so the stream also
+     * contains the messages Hatari writes there, e.g. the responses to debugger commands
+     * sent with {@link HatariControl#debug(String)}. Its log is not part of it (it goes to
+     * the error output). Subscribers should filter the lines they are interested in.
+     * <p></p>
+     * Every subscriber has a bounded buffer ({@link Flow#defaultBufferSize()} lines). The
+     * emulator is never slowed down by subscribers: if a subscriber doesn't keep up, lines
+     * are dropped for it (see {@link #getDroppedConsoleLines()}). All lines remain
+     * available in {@link #getOutput()}, within its limits.
+     *
+     * @return The publisher of the console output lines.
+     */
+    public Flow.Publisher<String> getConsole() {
+        return console;
+    }
+
+    /**
+     * Passes every line of console output to the given consumer, see {@link #getConsole()}.
+     * <pre>
+     * session.consumeConsole(line -&gt; System.out.println("ATARI: " + line));
+     * </pre>
+     *
+     * @param consumer The consumer of the console output lines.
+     * @return Future which completes when the emulator has terminated, or exceptionally if the consumer failed.
+     */
+    public CompletableFuture<Void> consumeConsole(Consumer<String> consumer) {
+        return console.consume(consumer);
+    }
+
+    /**
+     * @return The number of console output lines which were dropped because a subscriber didn't keep up.
+     */
+    public long getDroppedConsoleLines() {
+        return droppedConsoleLines.get();
+    }
+
+    /**
+     * Returns a future which completes with the next line of emulator output
+     * (standard output or error output) matching the given pattern.
+     *
+     * @param pattern The pattern to look for.
+     * @return Future completing with the matching output line.
+     */
+    public CompletableFuture<String> awaitOutput(Pattern pattern) {
+        return awaitLine(pattern, lineListeners);
+    }
+
+    /**
+     * Returns a future which completes with the next line of console output of the emulated
+     * system matching the given pattern (see {@link #getConsole()}). Unlike
+     * {@link #awaitOutput(Pattern)}, the log of the emulator is not searched. Only works for
+     * instances with {@link HatariInstance#isConsoleOutput()} enabled.
+     *
+     * @param pattern The pattern to look for.
+     * @return Future completing with the matching console output line.
+     */
+    public CompletableFuture<String> awaitConsoleOutput(Pattern pattern) {
+        return awaitLine(pattern, consoleListeners);
+    }
+
+    private CompletableFuture<String> awaitLine(Pattern pattern, List<Consumer<String>> listeners) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        Consumer<String> listener = new Consumer<String>() {
+            @Override
+            public void accept(String line) {
+                if (pattern.matcher(line).find() && result.complete(line)) {
+                    listeners.remove(this);
+                }
+            }
+        };
+        listeners.add(listener);
+        terminated.thenRun(() -> {
+            listeners.remove(listener);
+            result.completeExceptionally(new IllegalStateException("Emulator " + instance.getLabel()
+                    + " terminated without output matching " + pattern));
+        });
+        return result;
+    }
+
+    /**
+     * Returns the watcher which reports the files written into drive "C:" by the emulated
+     * program. It is started on first use, and stopped when the emulator terminates.
+     * <pre>
+     * session.getDriveWatcher().addListener(event -&gt; {
+     *     if (event.getType() == DriveWatcher.Type.stable) {
+     *         process(event.getFile());
+     *     }
+     * });
+     * </pre>
+     *
+     * @return The drive watcher.
+     */
+    public synchronized DriveWatcher getDriveWatcher() {
+        if (driveWatcher == null) {
+            driveWatcher = new DriveWatcher(sandbox.getDriveC(), instance.getLabel(), DriveWatcher.DEFAULT_QUIET_MILLIS);
+            terminated.thenRun(driveWatcher::close);
+        }
+        return driveWatcher;
+    }
+
+    /**
+     * Returns a future which completes once the given file exists in drive "C:".
+     * This allows the emulated program to signal its state by writing a marker file.
+     *
+     * @param path The path of the file, relative to drive "C:" (e.g. "OUT/READY.TXT").
+     * @return Future completing with the file.
+     */
+    public CompletableFuture<File> awaitFile(String path) {
+        return awaitFile(path, getDriveWatcher().awaitFile(path));
+    }
+
+    /**
+     * Returns a future which completes once the given file exists in drive "C:", and has been
+     * completely written (see {@link DriveWatcher#awaitStableFile(String)}).
+     *
+     * @param path The path of the file, relative to drive "C:" (e.g. "OUT/RESULT.TXT").
+     * @return Future completing with the file.
+     */
+    public CompletableFuture<File> awaitStableFile(String path) {
+        return awaitFile(path, getDriveWatcher().awaitStableFile(path));
+    }
+
+    private CompletableFuture<File> awaitFile(String path, CompletableFuture<File> result) {
+        File file = new File(sandbox.getDriveC(), path.replace('\\', '/'));
+        terminated.thenRun(() -> {
+            // All writes are done once the emulator has terminated
+            if (file.isFile()) {
+                result.complete(file);
+            } else {
+                result.completeExceptionally(new IllegalStateException("Emulator " + instance.getLabel()
+                        + " terminated without creating " + path));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Sets the desktop window of the emulator (or null, if it could not be determined).
+     *
+     * @param desktopWindow The desktop window.
+     */
+    void setWindow(DesktopWindow desktopWindow) {
+        window.complete(desktopWindow);
+    }
+
+    /**
+     * @return The emulator process.
+     */
+    Process getProcess() {
+        return process;
+    }
+
+    /**
+     * Reads the given output stream of the emulator process line by line in a background
+     * thread, stores it in the given buffer and passes each line to the line listeners,
+     * and to the subscribers of the given publisher (if any).
+     *
+     * @return Future which completes when the stream has been closed.
+     */
+    private CompletableFuture<Void> pumpOutput(InputStream in, LineBuffer buffer,
+                                               SubmissionPublisher<String> publisher, String name) {
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        Thread pump = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    buffer.add(line);
+                    for (Consumer<String> listener : lineListeners) {
+                        try {
+                            listener.accept(line);
+                        } catch (RuntimeException e) {
+                            System.out.println(">> Output listener of Hatari instance "
+                                    + instance.getLabel() + " failed: " + e);
+                        }
+                    }
+                    if (publisher != null) {
+                        String consoleLine = CONSOLE_ESCAPE_PATTERN.matcher(line).replaceAll("");
+                        for (Consumer<String> listener : consoleListeners) {
+                            listener.accept(consoleLine);
+                        }
+                        if (publisher.hasSubscribers()) {
+                            // Never block the emulator: drop the line for subscribers which don't keep up
+                            publisher.offer(consoleLine, (subscriber, item) -> {
+                                droppedConsoleLines.incrementAndGet();
+                                return false;
+                            });
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Stream closed, emulator terminated
+            } finally {
+                closed.complete(null);
+            }
+        }, "hatari-" + name + "-" + instance.getLabel());
+        pump.setDaemon(true);
+        pump.start();
+        return closed;
+    }
+
+    /**
+     * Line listener which only passes on lines matching a pattern.
+     */
+    private static class PatternListener implements Consumer<String> {
+        private final Pattern pattern;
+        private final Consumer<String> listener;
+
+        private PatternListener(Pattern pattern, Consumer<String> listener) {
+            this.pattern = pattern;
+            this.listener = listener;
+        }
+
+        @Override
+        public void accept(String line) {
+            if (pattern.matcher(line).find()) {
+                listener.accept(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package games.play4ever.retrodev.hatari;
+
+import games.play4ever.retrodev.util.FileUtil;
+import games.play4ever.retrodev.util.PlatformUtil;
+
+import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Cache of memory snapshots ("memstate" files) taken right after an emulator
+ * has booted. On the first start of a given configuration, a separate emulator
+ * is booted once, and its memory state is saved into the cache. Every later start
+ * of the same configuration resumes from that snapshot instead of booting TOS again.
+ * <p></p>
+ * Snapshots are stored under a hash of the instance configuration, the TOS image
+ * and the emulator executable, so a changed TOS image or emulator version results
+ * in a new snapshot. Each snapshot is created only once, even when several emulators
+ * of the same configuration are started at the same time; creating the snapshot of one
+ * configuration does not hold up the start of other configurations.
+ * <p></p>
+ * NOTE: Hatari stores the folder of the GEMDOS drive "C:" in its memory snapshots, and uses
+ * that folder again when resuming. The snapshots are therefore booted with the stable,
+ * empty folder "drivec" of the cache directory as drive "C:", which is never deleted. To run a
+ * program in the own drive "C:" of an emulator, start it without snapshot (e.g. as a
+ * {@link HatariJob}, which always boots).
+ * <p></p>
+ * Usage:
+ * <pre>
+ * HatariWrapper.setSnapshotCache(new HatariSnapshotCache(new File("./hatari/snapshots")));
+ * </pre>
+ *
+ * @author Marcel Schoen
+ */
+public class HatariSnapshotCache {
+
+    private final File cacheDirectory;
+
+    private long bootTimeoutMillis = 60000;
+
+    private long saveTimeoutMillis = 10000;
+
+    /**
+     * Snapshots which are currently being created, per cache key.
+     */
+    private final Map<String, CompletableFuture<File>> creations = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a snapshot cache.
+     *
+     * @param cacheDirectory The directory where the snapshot files are stored (will be created).
+     */
+    public HatariSnapshotCache(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Sets the maximum time to wait for the emulator to boot up to the desktop,
+     * when creating a snapshot.
+     *
+     * @param bootTimeout The time to wait for the emulator to boot.
+     * @param unit        The time unit.
+     */
+    public void setBootTimeout(long bootTimeout, TimeUnit unit) {
+        this.bootTimeoutMillis = unit.toMillis(bootTimeout);
+    }
+
+    /**
+     * @return The directory where the snapshot files are stored.
+     */
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Returns the cached snapshot for the configuration of the given instance.
+     *
+     * @param instance The emulator instance.
+     * @return The snapshot file, or null if there is no snapshot for this configuration yet.
+     */
+    public File getSnapshot(HatariInstance instance) {
+        return getSnapshot(HatariWrapper.getRuntime(), instance);
+    }
+
+    /**
+     * Returns the cached snapshot for the configuration of the given instance,
+     * when run by the given runtime.
+     *
+     * @param runtime  The runtime which runs the emulator.
+     * @param instance The emulator instance.
+     * @return The snapshot file, or null if there is no snapshot for this configuration yet.
+     */
+    public File getSnapshot(HatariRuntime runtime, HatariInstance instance) {
+        File snapshot = getSnapshotFile(getSnapshotKey(runtime, instance));
+        return snapshot.isFile() ? snapshot : null;
+    }
+
+    /**
+     * Returns the cached snapshot for the configuration of the given instance. If there
+     * is none yet, a separate emulator is booted to create it first.
+     *
+     * @param instance The emulator instance.
+     * @return The snapshot file.
+     */
+    public File getOrCreateSnapshot(HatariInstance instance) {
+        return getOrCreateSnapshot(HatariWrapper.getRuntime(), instance);
+    }
+
+    /**
+     * Returns the cached snapshot for the configuration of the given instance, when run by
+     * the given runtime. If there is none yet, a separate emulator is booted by the runtime
+     * to create it first. If the snapshot is already being created by another thread, waits
+     * for that one instead.
+     *
+     * @param runtime  The runtime which runs the emulator.
+     * @param instance The emulator instance.
+     * @return The snapshot file.
+     */
+    public File getOrCreateSnapshot(HatariRuntime runtime, HatariInstance instance) {
+        String key = getSnapshotKey(runtime, instance);
+        File snapshot = getSnapshotFile(key);
+        if (snapshot.isFile()) {
+            return snapshot;
+        }
+        CompletableFuture<File> creation = new CompletableFuture<>();
+        CompletableFuture<File> running = creations.putIfAbsent(key, creation);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            // Another thread may have finished creating it in the meantime
+            if (!snapshot.isFile()) {
+                createSnapshot(runtime, instance, key, snapshot);
+            }
+            creation.complete(snapshot);
+            return snapshot;
+        } catch (RuntimeException e) {
+            creation.completeExceptionally(e);
+            throw e;
+        } finally {
+            creations.remove(key, creation);
+        }
+    }
+
+    /**
+     * Removes all cached snapshots.
+     */
+    public void clear() {
+        FileUtil.deleteDir(cacheDirectory);
+    }
+
+    /**
+     * Calculates the cache key for the configuration of the given instance.
+     *
+     * @param runtime  The runtime which runs the emulator.
+     * @param instance The emulator instance.
+     * @return The content hash of the configuration, TOS image and emulator.
+     */
+    String getSnapshotKey(HatariRuntime runtime, HatariInstance instance) {
+        return FileUtil.sha256(instance.getConfigurationKey()
+                + "|" + runtime.getTosStore().getHash(instance.getTos())
+                + "|" + runtime.getInstallation().getHash());
+    }
+
+    private File getSnapshotFile(String key) {
+        return new File(cacheDirectory, key + ".sav");
+    }
+
+    /**
+     * Boots a separate emulator, waits until it is ready and saves its memory state into the given snapshot file.
+     * Hatari is configured to write both its manual memory snapshot and its memory
+     * "auto-save" (written when the emulator terminates) into a temporary file. The snapshot
+     * is requested through the remote control where available, on Windows with the AltGr+K
+     * shortcut. Otherwise, the emulator is asked to terminate, which triggers the auto-save.
+     */
+    private void createSnapshot(HatariRuntime runtime, HatariInstance instance, String key, File snapshot) {
+        cacheDirectory.mkdirs();
+        File tempSnapshot = new File(cacheDirectory, key + ".tmp");
+        tempSnapshot.delete();
+
+        System.out.println(">> Create memory snapshot for " + instance.getConfigurationKey());
+        HatariInstance bootInstance = instance.toBuilder()
+                .label(instance.getLabel() + "-snapshot")
+                .option("Memory", "bAutoSave", "TRUE")
+                .option("Memory", "szAutoSaveFileName", tempSnapshot.getAbsolutePath())
+                .option("Memory", "szMemoryCaptureFileName", tempSnapshot.getAbsolutePath())
+                .build();
+        // The drive C: folder is recorded in the snapshot, so it must still exist when resuming
+        File driveC = new File(cacheDirectory, "drivec");
+        driveC.mkdirs();
+        HatariSession session = runtime.launchEmulator(bootInstance, null, null, null, null,
+                Arrays.asList("-d", driveC.getAbsolutePath()));
+        Exception bootFailure = null;
+        try {
+            session.ready().get(bootTimeoutMillis, TimeUnit.MILLISECONDS);
+            HatariControl control = runtime.getControl(bootInstance);
+            if (control != null) {
+                control.shortcut("savemem");
+                waitForFile(tempSnapshot);
+            } else if (runtime.sendShortcut(bootInstance, KeyEvent.VK_ALT_GRAPH, KeyEvent.VK_K)) {
+                waitForFile(tempSnapshot);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            bootFailure = e;
+        } finally {
+            runtime.shutdownEmulator(bootInstance, saveTimeoutMillis);
+            runtime.deleteSandbox(bootInstance);
+        }
+
+        if (bootFailure != null || !tempSnapshot.isFile() || tempSnapshot.length() == 0) {
+            // Don't keep the state of an emulator which did not boot properly
+            tempSnapshot.delete();
+            throw new RuntimeException("Failed to create memory snapshot for " + instance.getConfigurationKey()
+                    + (bootFailure != null ? ": " + bootFailure : ""), bootFailure);
+        }
+        try {
+            Files.move(tempSnapshot.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to store memory snapshot " + snapshot + ": " + e, e);
+        }
+        System.out.println(">> Stored memory snapshot: " + snapshot.getAbsolutePath());
+    }
+
+    /**
+     * Waits until the given file exists and its size did not change for a moment.
+     */
+    private void waitForFile(File file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + saveTimeoutMillis;
+        long lastLength = -1;
+        while (System.currentTimeMillis() < deadline) {
+            long length = file.length();
+            if (length > 0 && length == lastLength) {
+                return;
+            }
+            lastLength = length;
+            Thread.sleep(250);
+        }
+    }
+}
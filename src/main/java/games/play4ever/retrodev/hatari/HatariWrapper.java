@@ -1,74 +1,128 @@
 package games.play4ever.retrodev.hatari;
 
 import com.sun.jna.platform.DesktopWindow;
-import com.sun.jna.platform.WindowUtils;
-import com.sun.jna.platform.win32.User32;
-import com.sun.jna.platform.win32.WinDef;
-import games.play4ever.retrodev.util.FileUtil;
-import games.play4ever.retrodev.util.PlatformUtil;
-
-import java.awt.*;
-import java.io.*;
-import java.util.List;
-import java.util.*;
 
-import static games.play4ever.retrodev.util.FileUtil.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handler for the native Atari ST emulator "Hatari".
  * Will unpack the emulator from the Java resources into
- * a temporary directory and then execute it from there.
+ * a shared cache directory and then execute it from there.
  * <p></p>
  * When starting the emulator, an instance object must be provided
  * which describes the settings for the new Hatari instance, such as
  * screen resolution, machine type, TOS version etc.
+ * <p></p>
+ * All methods delegate to a default {@link HatariRuntime}, shared by the whole JVM.
+ * To run several independent sets of emulators (e.g. with different work directories),
+ * create separate runtimes instead.
  *
  * @author Marcel Schoen
  */
 public class HatariWrapper {
 
-    static File workDirectory = new File(".");
-    private static Robot robot;
     /**
-     * Store reference to emulator processes.
+     * The runtime used by the static methods of this class.
      */
-    private static Map<HatariInstance, Process> emulatorProcesses = new HashMap<>();
-
-    /**
-     * Store reference to emulator windows.
-     */
-    private static Map<HatariInstance, DesktopWindow> emulatorWindows = new HashMap<>();
-
-    static {
-        try {
-            robot = new Robot();
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to initialize robot API");
-        }
-    }
+    private static final HatariRuntime runtime = new HatariRuntime();
 
     /**
      * Main method used mostly for testing / demonstration purposes. Allows to run
-     * the emulator manually from a shell using the executable Jar file.
+     * the emulator manually from a shell using the executable Jar file. If programs
+     * are given, they are run as a batch in headless emulators (see {@link HatariBatch}),
+     * otherwise one emulator is started with the given settings.
      *
      * @param args The command line arguments.
      */
     public static void main(String... args) {
         try {
-            HatariInstance instance = new HatariInstance("demo",
-                    true,
-                    false,
-                    true,
-                    true,
-                    true,
-                    true,
-                    MachineType.ste,
-                    TOS.tos206,
-                    ScreenMode.low,
-                    Memory.mb1);
-
-            prepare(new File("./hatari"), TOS.getEmuTOSByLocale());
-            startEmulator(instance, null, null);
+            HatariInstance.Builder settings = HatariInstance.builder("demo")
+                    .fastBoot(true)
+                    .tos(TOS.getEmuTOSByLocale());
+            File workDirectory = new File("./hatari");
+            File resultDirectory = null;
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            long timeoutSeconds = 300;
+            List<String> expectedFiles = new ArrayList<>();
+            List<File> programs = new ArrayList<>();
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (!arg.startsWith("-")) {
+                    programs.add(new File(arg));
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for argument: " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "-machine":
+                        settings.machine(MachineType.valueOf(value));
+                        break;
+                    case "-memory":
+                        settings.memory(Memory.valueOf("mb" + value));
+                        break;
+                    case "-mode":
+                        settings.mode(Arrays.stream(ScreenMode.values())
+                                .filter(mode -> mode.value.equals(value))
+                                .findFirst()
+                                .orElseThrow(() -> new IllegalArgumentException("Invalid mode: " + value)));
+                        break;
+                    case "-tos":
+                        settings.tos(TOS.valueOf(value));
+                        break;
+                    case "-work":
+                        workDirectory = new File(value);
+                        break;
+                    case "-results":
+                        resultDirectory = new File(value);
+                        break;
+                    case "-jobs":
+                        parallelism = Integer.parseInt(value);
+                        break;
+                    case "-timeout":
+                        timeoutSeconds = Long.parseLong(value);
+                        break;
+                    case "-expect":
+                        expectedFiles.add(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+            }
+
+            prepare(workDirectory, settings.build().getTos());
+            if (programs.isEmpty()) {
+                startEmulator(settings.build(), null, null);
+                return;
+            }
+
+            HatariInstance batchInstance = settings
+                    .profile(PerformanceProfile.throughput)
+                    .headless(true)
+                    .build();
+            List<HatariJob> jobs = new ArrayList<>();
+            for (File program : programs) {
+                HatariJob.Builder job = HatariJob.builder(program.getName(), program)
+                        .instance(batchInstance)
+                        .timeout(timeoutSeconds, TimeUnit.SECONDS);
+                expectedFiles.forEach(job::expectFile);
+                jobs.add(job.build());
+            }
+            List<HatariJobResult> results;
+            try (HatariBatch batch = new HatariBatch(runtime, parallelism)) {
+                if (resultDirectory != null) {
+                    batch.setResultDirectory(resultDirectory);
+                }
+                results = batch.runAll(jobs);
+            }
+            System.out.println(HatariBatch.getReport(results));
+            System.exit(results.stream().allMatch(HatariJobResult::isPassed) ? 0 : 1);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -78,7 +132,7 @@ public class HatariWrapper {
     }
 
     private static void printUsage() {
-        System.out.println("Usage: java -jar java-hatari-wrapper-<version>.jar [...arguments]");
+        System.out.println("Usage: java -jar java-hatari-wrapper-<version>.jar [...arguments] [program|zip ...]");
         System.out.println("Arguments:");
         System.out.println("");
         System.out.println("-machine st|megast|ste");
@@ -93,44 +147,102 @@ public class HatariWrapper {
         System.out.println("  low = 320x200  16 colors");
         System.out.println("  mid = 640x200   4 colors");
         System.out.println(" high = 640x400 monochrome");
+        System.out.println("");
+        System.out.println("-tos <version>");
+        System.out.println("");
+        System.out.println(" TOS version, e.g. tos206 or etos512us.");
+        System.out.println("");
+        System.out.println("-work <directory>");
+        System.out.println("");
+        System.out.println(" Work directory for the emulator sandboxes (default: ./hatari).");
+        System.out.println("");
+        System.out.println("Batch mode (if programs are given; each one runs in its own headless emulator):");
+        System.out.println("");
+        System.out.println("-jobs <n>          Number of emulators running in parallel (default: number of cores).");
+        System.out.println("-timeout <seconds> Maximum runtime per program (default: 300).");
+        System.out.println("-expect <path>     File in drive C: the program must write (repeatable). Without it,");
+        System.out.println("                   the program must end the emulator with NatFeats NF_EXIT or NF_SHUTDOWN.");
+        System.out.println("-results <dir>     Directory for the collected result files (default: <work>/results).");
     }
 
     /**
-     * Unpacks the Hatari emulator into a local temporary directory,
-     * if it isn't already there. Within the given work directory, a subfolder
-     * "drivec" will be created which will be mounted as GEMDOS drive "C:" in
-     * the emulator. This allows the host system and the emulator shared file access.
+     * @return The default runtime, which is used by all methods of this class.
+     */
+    public static HatariRuntime getRuntime() {
+        return runtime;
+    }
+
+    /**
+     * Prepares the emulator for running instances in the given work directory,
+     * see {@link HatariRuntime#prepare(File, TOS)}.
      *
-     * @param workDirectory The directory where to unpack the emulator files.
+     * @param workDirectory The directory for the sandboxes of the emulator instances.
+     * @param tos           The TOS version to extract into the {@link TosStore} right away.
      */
     public static void prepare(File workDirectory, TOS tos) {
-        HatariWrapper.workDirectory = workDirectory;
-        HatariWrapper.workDirectory.mkdirs();
-        File tempDir = workDirectory;
-        PlatformUtil.OSType osType = PlatformUtil.getOperatingSystemType();
-        File hatariBin = new File(tempDir, osType.emulatorExecutable);
-        if (!hatariBin.exists() || !hatariBin.canExecute()) {
-            try {
-                String emulatorArchive = osType.emulatorArchive;
-                if (emulatorArchive != null) {
-                    System.out.println(">> Unpack emulator " + osType.emulatorArchive + " to: " + tempDir);
-                    unpackEmulator(tempDir, osType.emulatorArchive);
-                    System.out.println(">> Emulator unpacked to: " + tempDir);
-                } else {
-                    throw new RuntimeException(">> Platform '" + PlatformUtil.getOperatingSystemType().name() + " not yet supported.");
-                }
-            } catch (IOException ex) {
-                deleteDir(tempDir);
-                throw new RuntimeException("Failed to prepare the emulator: " + ex, ex);
-            }
-        }
-        // Always extract TOS to make sure it doesn't use a wrong version from a previous run
-        try {
-            unpackTOS(tempDir, tos);
-        } catch (IOException ex) {
-            deleteDir(tempDir);
-            throw new RuntimeException("Failed to prepare TOS: " + ex, ex);
-        }
+        runtime.prepare(workDirectory, tos);
+    }
+
+    /**
+     * Sets the Hatari executable installed on the system to use, instead of the emulator
+     * bundled with this wrapper, see {@link HatariRuntime#setEmulatorExecutable(File)}.
+     *
+     * @param executable The Hatari executable, or null to use the bundled emulator.
+     */
+    public static void setEmulatorExecutable(File executable) {
+        runtime.setEmulatorExecutable(executable);
+    }
+
+    /**
+     * Sets the directory in which the emulator is installed, see {@link HatariRuntime#setInstallCache(File)}.
+     *
+     * @param directory The installation cache directory.
+     */
+    public static void setInstallCache(File directory) {
+        runtime.setInstallCache(directory);
+    }
+
+    /**
+     * @return The emulator installation used.
+     * @throws IllegalStateException If {@link #prepare(File, TOS)} has not been called yet.
+     */
+    public static HatariInstallation getInstallation() {
+        return runtime.getInstallation();
+    }
+
+    /**
+     * Sets the store from which the TOS images are used, see {@link HatariRuntime#setTosStore(TosStore)}.
+     *
+     * @param store The TOS image store.
+     */
+    public static void setTosStore(TosStore store) {
+        runtime.setTosStore(store);
+    }
+
+    /**
+     * @return The store from which the TOS images are used.
+     */
+    public static TosStore getTosStore() {
+        return runtime.getTosStore();
+    }
+
+    /**
+     * Sets the cache for post-boot memory snapshots, see {@link HatariRuntime#setSnapshotCache(HatariSnapshotCache)}.
+     *
+     * @param cache The snapshot cache, or null to disable the cache.
+     */
+    public static void setSnapshotCache(HatariSnapshotCache cache) {
+        runtime.setSnapshotCache(cache);
+    }
+
+    /**
+     * Sets the number of lines of emulator output (per output stream) which are kept
+     * in memory. The output is only written to disk if the emulator fails.
+     *
+     * @param lines The number of lines to keep.
+     */
+    public static void setOutputBufferLines(int lines) {
+        runtime.setOutputBufferLines(lines);
     }
 
     /**
@@ -139,7 +251,7 @@ public class HatariWrapper {
      * @param instance   The emulator instance to start.
      */
     public static DesktopWindow startEmulator(HatariInstance instance) {
-        return startEmulator(instance, null, null);
+        return runtime.startEmulator(instance);
     }
 
     /**
@@ -147,20 +259,22 @@ public class HatariWrapper {
      *
      * @param instance           The emulator instance to start.
      * @param memorySnapshotFile Optional: Memory snapshot file to start the emulator with.
-     * @param programOrSource    Optional: A program or GFA source file to copy into the GEMDOS drive.
+     * @param programOrSource    Optional: A program or GFA source file, a directory or a zip archive to synchronize into the GEMDOS drive.
      */
     public static DesktopWindow startEmulator(HatariInstance instance,
                                               File memorySnapshotFile,
                                               File programOrSource) {
-        return startEmulator(instance, memorySnapshotFile, programOrSource, null, null);
+        return runtime.startEmulator(instance, memorySnapshotFile, programOrSource);
     }
 
     /**
-     * Launches the emulator of the given instance.
+     * Launches the emulator of the given instance. On Windows, waits for up to 2 seconds
+     * for the emulator window to appear. To wait for the emulator to be booted up and
+     * ready to use, see {@link #startSession(HatariInstance, File, File, File, File)}.
      *
      * @param instance           The emulator instance to start.
      * @param memorySnapshotFile Optional: Memory snapshot file to start the emulator with.
-     * @param programOrSource    Optional: A program or GFA source file to copy into the GEMDOS drive.
+     * @param programOrSource    Optional: A program or GFA source file, a directory or a zip archive to synchronize into the GEMDOS drive.
      * @param imageFloppyA       Optional: A floppy image file for drive A.
      * @param imageFloppyB       Optional: A floppy image file for drive B.
      */
@@ -169,154 +283,100 @@ public class HatariWrapper {
                                               File programOrSource,
                                               File imageFloppyA,
                                               File imageFloppyB) {
+        return runtime.startEmulator(instance, memorySnapshotFile, programOrSource, imageFloppyA, imageFloppyB);
+    }
 
-        if (emulatorWindows.containsKey(instance)) {
-            // Emulator already running, return reference to open window
-            return emulatorWindows.get(instance);
-        }
-
-        Map<WinDef.HWND, DesktopWindow> alreadyOpenWindows = new HashMap<>();
-        if(PlatformUtil.getOperatingSystemType() == PlatformUtil.OSType.Windows) {
-            WindowUtils.getAllWindows(true).stream().forEach(w -> alreadyOpenWindows.put(w.getHWND(), w));
-        }
-
-        if (emulatorProcesses.get(instance) != null) {
-            // Instance of this type already running - try to kill it first
-            emulatorProcesses.get(instance).destroyForcibly();
-        }
-
-        System.out.println(">> Start emulator in: " + HatariWrapper.workDirectory.getAbsolutePath());
-
-        ArrayList<String> args = new ArrayList<>();
-        args.add(new File(HatariWrapper.workDirectory,
-                PlatformUtil.getOperatingSystemType().emulatorExecutable).getAbsolutePath()); // TODO - multiplatform support
-
-        // Start with given runtime folder as GEMDOS drive C:
-        File runtimeFolder = getOrCreateRuntimeBuildFolder();
-        args.add("-d");
-        args.add(runtimeFolder.getAbsolutePath());
-
-        addFloppyParameters(args, imageFloppyA, "a");
-        addFloppyParameters(args, imageFloppyB, "b");
-
-        // Optional: Start with memory snapshot
-        if (memorySnapshotFile != null && memorySnapshotFile.isFile()) {
-            args.add("--memstate");
-            args.add(memorySnapshotFile.getAbsolutePath());
-        }
-
-        // Add all additional arguments based on instance settings
-        args.addAll(instance.getRuntimeArguments());
-
-
-        if (programOrSource != null && programOrSource.isFile()) {
-            if (programOrSource.getName().toLowerCase().endsWith(".zip")) {
-                try {
-                    System.out.println("Unpack " + programOrSource.getAbsolutePath() + " to: " + runtimeFolder.getAbsolutePath());
-                    unpackZip(runtimeFolder, new FileInputStream(programOrSource));
-                } catch (Exception e) {
-                    throw new RuntimeException("Failed to unpack zip file " + programOrSource + ": " + e, e);
-                }
-            } else {
-                File targetFile = new File(runtimeFolder, programOrSource.getName());
-                System.out.println("> Copy file " + programOrSource.getAbsolutePath() + " to " + targetFile.getAbsolutePath());
-                copyFileTo(programOrSource, targetFile);
-            }
-        }
-
-        String[] finalArgs = args.toArray(new String[0]);
-
-        System.out.println("------------- emulator arguments ---------\n\r");
-        Arrays.asList(finalArgs).stream().forEach(arg -> System.out.print(arg + " "));
-        System.out.println("\n\r------------------------------------------");
-
-        DesktopWindow result = null;
-        ProcessBuilder pb = new ProcessBuilder(finalArgs);
-        pb.redirectError(new File(HatariWrapper.workDirectory, "error.log"));
-        pb.redirectOutput(new File(HatariWrapper.workDirectory, "output.log"));
-        pb.directory(HatariWrapper.workDirectory.getAbsoluteFile());
-        try {
-            Process p = pb.start();
-            emulatorProcesses.put(instance, p);
-            //System.out.println(">> Emulator process exit value: " + p.exitValue());
-
-            // Only do this for platforms where this JNA functionality is implemented
-            if(PlatformUtil.getOperatingSystemType() == PlatformUtil.OSType.Windows) {
-                if(!alreadyOpenWindows.isEmpty()) {
-                    // Try to get handle of emulator window for up to 1 second
-                    long now = System.currentTimeMillis();
-                    while (result == null && (System.currentTimeMillis() - now) < 2000) {
-                        List<DesktopWindow> windows = WindowUtils.getAllWindows(true);
-                        for (DesktopWindow desktopWindow : windows) {
-                            // Make sure it's not a window that was open before (like one from an already running Hatari instance)
-                            if (alreadyOpenWindows.get(desktopWindow.getHWND()) == null) {
-                                // Check if it's a Hatari window
-                                if (desktopWindow.getTitle().startsWith("Hatari v")) {
-                                    emulatorWindows.put(instance, desktopWindow);
-                                    result = desktopWindow;
-                                    break;
-                                }
-                            }
-                        }
-                        Thread.sleep(50);
-                    }
-                }
-            }
-
-        } catch (Exception e) {
-            // For some reason, the emulator window handle could not be obtained - kill the emulator and raise an exception
-            stopEmulator(instance);
-            throw new RuntimeException("Failed to start the emulator: " + e, e);
-        }
+    /**
+     * Launches the emulator of the given instance.
+     *
+     * @param instance The emulator instance to start.
+     * @return Future which completes with the session once the emulator is ready.
+     */
+    public static CompletableFuture<HatariSession> startSession(HatariInstance instance) {
+        return runtime.startSession(instance);
+    }
 
-        if (result == null && !alreadyOpenWindows.isEmpty()) {
-            // For some reason, the emulator window handle could not be obtained - kill the emulator and raise an exception
-            stopEmulator(instance);
-            throw new RuntimeException("Failed to obtain handle of emulator window!");
-        }
-        System.out.println("> Resulting desktop window: " + result);
+    /**
+     * Launches the emulator of the given instance. Returns immediately after launching
+     * the emulator process; the returned future completes as soon as the emulated system
+     * has booted up, see {@link HatariSession#ready()}.
+     *
+     * @param instance           The emulator instance to start.
+     * @param memorySnapshotFile Optional: Memory snapshot file to start the emulator with.
+     * @param programOrSource    Optional: A program or GFA source file, a directory or a zip archive to synchronize into the GEMDOS drive.
+     * @param imageFloppyA       Optional: A floppy image file for drive A.
+     * @param imageFloppyB       Optional: A floppy image file for drive B.
+     * @return Future which completes with the session once the emulator is ready.
+     */
+    public static CompletableFuture<HatariSession> startSession(HatariInstance instance,
+                                                               File memorySnapshotFile,
+                                                               File programOrSource,
+                                                               File imageFloppyA,
+                                                               File imageFloppyB) {
+        return runtime.startSession(instance, memorySnapshotFile, programOrSource, imageFloppyA, imageFloppyB);
+    }
 
-        return result;
+    /**
+     * Launches the emulator of the given instance, and starts the given program at boot,
+     * see {@link HatariRuntime#startSession(HatariInstance, File, String)}.
+     *
+     * @param instance        The emulator instance to start.
+     * @param programOrSource A program, a directory or a zip archive to synchronize into the GEMDOS drive.
+     * @param autoStart       The path of the program to start, relative to drive "C:".
+     * @return Future which completes with the session once the emulator is ready.
+     */
+    public static CompletableFuture<HatariSession> startSession(HatariInstance instance,
+                                                               File programOrSource,
+                                                               String autoStart) {
+        return runtime.startSession(instance, programOrSource, autoStart);
     }
 
-    private static void addFloppyParameters(ArrayList<String> args, File floppyImage, String driveLetter) {
-        args.add("--drive-" + driveLetter);
-        if(floppyImage == null) {
-            args.add("off");
-        } else {
-            args.add("on");
-            args.add("--disk-" + driveLetter);
-            args.add(floppyImage.getAbsolutePath());
-        }
+    /**
+     * Runs the given job in a freshly started emulator, and waits until it is done,
+     * see {@link HatariRuntime#run(HatariJob)}.
+     *
+     * @param job The job to run.
+     * @return The result of the job.
+     */
+    public static HatariJobResult run(HatariJob job) {
+        return runtime.run(job);
     }
 
-    private static File getOrCreateRuntimeBuildFolder() {
-        File runtimeFolder = new File(HatariWrapper.workDirectory, "drivec");
-        if (runtimeFolder.exists() && runtimeFolder.isDirectory()) {
-            return runtimeFolder;
-        }
+    /**
+     * Returns the session of the given running emulator instance.
+     *
+     * @param instance The emulator instance.
+     * @return The session, or null if the emulator is not running.
+     */
+    public static HatariSession getSession(HatariInstance instance) {
+        return runtime.getSession(instance);
+    }
 
-        deleteDir(runtimeFolder);
-        runtimeFolder.delete();
-        runtimeFolder.mkdirs();
+    /**
+     * Returns the sandbox of the given instance, which contains its GEMDOS drive
+     * "C:" folder and log files.
+     *
+     * @param instance The emulator instance.
+     * @return The sandbox, or null if the instance was never started.
+     */
+    public static HatariSandbox getSandbox(HatariInstance instance) {
+        return runtime.getSandbox(instance);
+    }
 
-        File harddiscFolder = new File("src/resources/java/hatari/gfa_hdd");
-        if (harddiscFolder != null && harddiscFolder.isDirectory()) {
-            // Prepare runtime harddisc folder by copying the
-            // given source folder into the build temp dir
-            FileUtil.copyDirectory(harddiscFolder, runtimeFolder);
-        }
-        return runtimeFolder;
+    /**
+     * Stops the given emulator instance, if it is still running, and deletes its sandbox.
+     *
+     * @param instance The emulator instance.
+     */
+    public static void deleteSandbox(HatariInstance instance) {
+        runtime.deleteSandbox(instance);
     }
 
     /**
      * Stops all open emulator instances.
      */
     public static void stopEmulators() {
-        System.out.println(">> Shutting down all Hatari instances");
-        emulatorProcesses.values().forEach(p -> p.destroyForcibly());
-        emulatorProcesses.clear();
-        emulatorWindows.clear();
+        runtime.stopEmulators();
     }
 
     /**
@@ -325,103 +385,40 @@ public class HatariWrapper {
      * @param instance The emulator instance to stop.
      */
     public static void stopEmulator(HatariInstance instance) {
-        if (emulatorProcesses.get(instance) != null) {
-            System.out.println(">> Shutting down Hatari instance " + instance.getLabel());
-            emulatorProcesses.get(instance).destroyForcibly();
-            emulatorProcesses.remove(instance);
-            emulatorWindows.remove(instance);
-        }
+        runtime.stopEmulator(instance);
     }
 
     /**
-     * Performs some key presses in the given window, using the Java Robot API. This method
-     * will first invoke "keyPress()" and then "keyRelease()" on each key, one by one. This
-     * method should be used to simulate the user typing a command or a file name.
+     * Returns the remote control client of the given running emulator instance. It allows
+     * to send key presses, shortcuts etc. directly to the emulator, regardless of which
+     * window has the focus. See {@link HatariControl}.
+     * <p></p>
+     * NOTE: Currently not available on Windows.
      *
-     * @param robot  The Robot instance.
-     * @param window The window (will be brought to the foreground).
-     * @param keys   The list of key codes to send to the window.
+     * @param instance The emulator instance.
+     * @return The remote control, or null if the emulator is not running or the platform doesn't support it.
      */
-    private static void pressKeys(Robot robot, WinDef.HWND window, int... keys) {
-        try {
-            // NOTE: Currently only works on Windows
-            if(PlatformUtil.getOperatingSystemType() == PlatformUtil.OSType.Windows) {
-                User32.INSTANCE.SetFocus(window);
-                User32.INSTANCE.SetForegroundWindow(window);
-            }
-            for (int key : keys) {
-                robot.keyPress(key);
-                robot.keyRelease(key);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException("** Failed to enter keyboard presses **");
-        } finally {
-            Arrays.stream(keys).forEach(k -> robot.keyRelease(k));
-        }
-    }
-
-    /**
-     * Performs some key presses in the given window, using the Java Robot API. This method
-     * will first invoke "keyPress()" on all given keys (effectively pressing the all at the same time),
-     * and then "keyRelease()" on all of them. This should be used to simulate shortcut keypressed,
-     * like pressing "ALT_GR" together with "l" to load a memory shortcut.
-     *
-     * @param robot  The Robot instance.
-     * @param window The window (will be brought to the foreground).
-     * @param keys   The list of key codes to send to the window.
-     */
-    private static void pressKeysTogether(Robot robot, WinDef.HWND window, int... keys) {
-        try {
-            // NOTE: Currently only works on Windows
-            if(PlatformUtil.getOperatingSystemType() == PlatformUtil.OSType.Windows) {
-                User32.INSTANCE.SetFocus(window);
-                User32.INSTANCE.SetForegroundWindow(window);
-            }
-            for (int key : keys) {
-                robot.keyPress(key);
-            }
-        } catch (Exception e) {
-            throw new RuntimeException("** Failed to enter keyboard presses **");
-        } finally {
-            Arrays.stream(keys).forEach(k -> robot.keyRelease(k));
-        }
+    public static HatariControl getControl(HatariInstance instance) {
+        return runtime.getControl(instance);
     }
 
     /**
-     * Unpacks the requested TOS image into the given working directory.
+     * Checks if the emulator of the given instance is currently running.
      *
-     * @param tempDir The target work/build directory.
-     * @param tos     The TOS image to extract.
-     * @throws IOException If the emulator could not be extracted.
+     * @param instance The emulator instance to check.
+     * @return True if the emulator process of the instance is alive.
      */
-    private static void unpackTOS(File tempDir, TOS tos) throws IOException {
-        InputStream tosImg = HatariWrapper.class.getResourceAsStream("/tos/" + tos.name() + ".img");
-        byte[] buffer = new byte[4096];
-        File tosFile = new File(tempDir, "tos.img");
-        FileOutputStream out = new FileOutputStream(tosFile);
-        int len;
-        while ((len = tosImg.read(buffer)) > 0) {
-            out.write(buffer, 0, len);
-        }
-        out.close();
-        System.out.println(">> Extracted TOS " + tos.name() + " to file: " + tosFile.getAbsolutePath());
+    public static boolean isRunning(HatariInstance instance) {
+        return runtime.isRunning(instance);
     }
 
-
     /**
-     * Unpacks the Hatari emulator into the given working directory.
+     * Returns the desktop window of the given running emulator instance.
      *
-     * @param tempDir The target work/build directory.
-     * @param fileZip The Hatari emulator zip archive.
-     * @throws IOException If the emulator could not be extracted.
+     * @param instance The emulator instance.
+     * @return The emulator window, or null if it is not running or the window is unknown.
      */
-    private static void unpackEmulator(File tempDir, String fileZip) throws IOException {
-        InputStream resourceStream = HatariWrapper.class.getResourceAsStream(fileZip);
-        System.out.println("> Zip stream: " + resourceStream);
-        unpackZip(tempDir, resourceStream);
-        // Make Hatari executable... executable!
-        File hatariExe = new File(tempDir, PlatformUtil.getOperatingSystemType().emulatorExecutable);
-        hatariExe.setExecutable(true);
+    public static DesktopWindow getEmulatorWindow(HatariInstance instance) {
+        return runtime.getEmulatorWindow(instance);
     }
 }
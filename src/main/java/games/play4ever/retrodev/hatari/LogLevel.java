@@ -0,0 +1,46 @@
+package games.play4ever.retrodev.hatari;
+
+/**
+ * Log levels of the Hatari emulator, from least to most verbose.
+ *
+ * @author Marcel Schoen
+ */
+public enum LogLevel {
+
+    /**
+     * Only fatal errors.
+     */
+    fatal("fatal"),
+    /**
+     * Errors.
+     */
+    error("error"),
+    /**
+     * Warnings.
+     */
+    warn("warn"),
+    /**
+     * Informational messages.
+     */
+    info("info"),
+    /**
+     * Messages about features not yet emulated.
+     */
+    todo("todo"),
+    /**
+     * Debug messages.
+     */
+    debug("debug");
+
+    /** The value of the "--log-level" option. */
+    public String value;
+
+    /**
+     * Creates a log level.
+     *
+     * @param value The option value.
+     */
+    LogLevel(String value) {
+        this.value = value;
+    }
+}
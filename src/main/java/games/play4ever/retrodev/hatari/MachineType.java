@@ -48,4 +48,27 @@ public enum MachineType {
         this.tosVersion = defaultTosVersion;
         this.hasBlitter = hasBlitter;
     }
+
+    /**
+     * Checks if the given TOS version runs on this type of machine. TOS 3.x and 4.x
+     * are made for the TT and Falcon, and the STE requires at least TOS 1.06.
+     * EmuTOS runs on all machine types.
+     *
+     * @param tos The TOS version.
+     * @return True if the TOS version supports this machine type.
+     */
+    public boolean isCompatible(TOS tos) {
+        switch (tos) {
+            case tos306:
+            case tos402:
+            case tos404:
+                return false;
+            case tos100:
+            case tos102:
+            case tos104:
+                return this != ste;
+            default:
+                return true;
+        }
+    }
 }
@@ -0,0 +1,79 @@
+package games.play4ever.retrodev.hatari;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Trade-off between emulation speed and accuracy of an emulator instance. Batch runs which
+ * only care about the output of a program can run many times faster than real time with
+ * the "throughput" profile, while timing-sensitive programs (demos, games) need the
+ * "accurate" profile.
+ * <p></p>
+ * Options not supported by a system-installed Hatari are skipped.
+ *
+ * @author Marcel Schoen
+ */
+public enum PerformanceProfile {
+
+    /**
+     * Maximum speed: fast-forward, fast floppy access, no cycle-exact CPU emulation,
+     * no sound, and only every 9th frame is rendered (without borders, zoom or spectrum 512 effects).
+     */
+    throughput("throughput", true, false,
+            "--fastfdc", "true",
+            "--cpu-exact", "false",
+            "--compatible", "false",
+            "--timer-d", "true",
+            "--frameskips", "8",
+            "--spec512", "0",
+            "--borders", "false",
+            "--zoom", "1"),
+    /**
+     * The default settings of Hatari.
+     */
+    balanced("balanced", false, true),
+    /**
+     * Maximum accuracy: real-time speed, cycle-exact CPU emulation, real floppy timing
+     * and every frame is rendered.
+     */
+    accurate("accurate", false, true,
+            "--fastfdc", "false",
+            "--cpu-exact", "true",
+            "--compatible", "true",
+            "--timer-d", "false",
+            "--frameskips", "0");
+
+    /** The name of the profile ("throughput", "balanced" or "accurate") */
+    public String value;
+
+    /** True if the profile runs the emulator at full host speed by default */
+    public boolean fullSpeed;
+
+    /** True if the profile enables sound by default */
+    public boolean useSound;
+
+    private final List<String> arguments;
+
+    /**
+     * Creates a performance profile.
+     *
+     * @param value     The name of the profile.
+     * @param fullSpeed The default for the full speed setting.
+     * @param useSound  The default for the sound setting.
+     * @param arguments The additional Hatari commandline arguments.
+     */
+    PerformanceProfile(String value, boolean fullSpeed, boolean useSound, String... arguments) {
+        this.value = value;
+        this.fullSpeed = fullSpeed;
+        this.useSound = useSound;
+        this.arguments = Collections.unmodifiableList(Arrays.asList(arguments));
+    }
+
+    /**
+     * @return The Hatari commandline arguments of this profile (besides full speed and sound).
+     */
+    public List<String> getArguments() {
+        return arguments;
+    }
+}
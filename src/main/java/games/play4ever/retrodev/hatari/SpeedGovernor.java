@@ -0,0 +1,265 @@
+package games.play4ever.retrodev.hatari;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+/**
+ * Switches the fast-forward mode of a running emulator on and off, to minimize the
+ * wall-clock time of a job without sacrificing its timing-sensitive phases. The emulator
+ * runs at full host speed as long as
+ *
+ * <ul>
+ * <li>a program is loading from or writing to drive "C:" ({@link #fastForwardOnDiskActivity(long, TimeUnit)}),</li>
+ * <li>the session is waiting for something, e.g. a result file ({@link #fastForwardUntil(CompletableFuture)}),</li>
+ * <li>or the last matching output rule said so ({@link #fastForwardOn(Pattern)}),</li>
+ * </ul>
+ * unless the last matching output rule asked for real-time speed ({@link #realTimeOn(Pattern)}),
+ * e.g. when the program starts an interactive or timing-sensitive part. Otherwise, the emulator
+ * runs at the speed configured for the instance.
+ * <p></p>
+ * The governor uses the remote control of the session, so it has no effect on Windows.
+ * <p></p>
+ * Usage:
+ * <pre>
+ * SpeedGovernor governor = new SpeedGovernor(session)
+ *         .fastForwardOnDiskActivity(500, TimeUnit.MILLISECONDS)
+ *         .realTimeOn(Pattern.compile("MEASURE START"));
+ * governor.awaitFile("RESULT.TXT").get(60, TimeUnit.SECONDS);
+ * </pre>
+ *
+ * @author Marcel Schoen
+ */
+public class SpeedGovernor implements AutoCloseable {
+
+    /**
+     * GEMDOS trace output of calls which access files on drive "C:".
+     */
+    static final Pattern DISK_ACTIVITY_PATTERN = Pattern.compile("GEMDOS .*\\b(Fopen|Fcreate|Fread|Fwrite|Fsfirst|Fsnext|Pexec)\\b");
+
+    private final HatariSession session;
+    private final HatariControl control;
+    private final boolean baseFastForward;
+
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Speed set by the last matching output rule (null if no rule matched yet).
+     */
+    private Boolean ruleFastForward;
+    private int pendingWaits = 0;
+    private long lastDiskActivity = 0;
+    private long diskQuietMillis = -1;
+    private ScheduledFuture<?> diskCheck;
+
+    private boolean fastForward;
+    private int switches = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a governor for the given session. Initially, the emulator keeps running
+     * at the speed configured for its instance.
+     *
+     * @param session The emulator session.
+     */
+    public SpeedGovernor(HatariSession session) {
+        this.session = session;
+        this.control = session.getControl();
+        this.baseFastForward = session.getInstance().isFullSpeed();
+        this.fastForward = baseFastForward;
+        if (control == null) {
+            System.out.println(">> Speed governor not available for Hatari instance "
+                    + session.getInstance().getLabel() + ": no remote control on this platform");
+        }
+        session.onExit().thenRun(this::close);
+    }
+
+    /**
+     * Adds a rule which switches fast-forward on when the emulator outputs a matching line.
+     *
+     * @param pattern The pattern to look for in the output (standard output and log).
+     * @return This governor.
+     */
+    public SpeedGovernor fastForwardOn(Pattern pattern) {
+        addRule(pattern, true);
+        return this;
+    }
+
+    /**
+     * Adds a rule which switches to real-time speed when the emulator outputs a matching line.
+     * Real-time speed takes precedence over disk activity and pending waits, until another
+     * rule switches fast-forward on again.
+     *
+     * @param pattern The pattern to look for in the output (standard output and log).
+     * @return This governor.
+     */
+    public SpeedGovernor realTimeOn(Pattern pattern) {
+        addRule(pattern, false);
+        return this;
+    }
+
+    /**
+     * Runs the emulator with fast-forward while programs access files on drive "C:", and
+     * switches back once there was no access during the given time. The disk activity is
+     * detected from the GEMDOS trace of the emulator, which is enabled for this purpose
+     * once the emulator is ready.
+     *
+     * @param quietTime The time without disk activity after which fast-forward is switched off.
+     * @param unit      The time unit.
+     * @return This governor.
+     */
+    public synchronized SpeedGovernor fastForwardOnDiskActivity(long quietTime, TimeUnit unit) {
+        if (diskQuietMillis < 0) {
+            addListener(line -> {
+                if (DISK_ACTIVITY_PATTERN.matcher(line).find()) {
+                    diskActivity();
+                }
+            });
+            if (control != null) {
+                session.ready().thenRun(() -> control.debug("trace gemdos"));
+            }
+            long period = Math.max(10, unit.toMillis(quietTime) / 4);
+            diskCheck = HatariSession.SCHEDULER.scheduleWithFixedDelay(this::update, period, period, TimeUnit.MILLISECONDS);
+        }
+        diskQuietMillis = unit.toMillis(quietTime);
+        return this;
+    }
+
+    /**
+     * Runs the emulator with fast-forward until the given future completes.
+     *
+     * @param future The future to wait for.
+     * @param <T>    The result type of the future.
+     * @return The given future.
+     */
+    public <T> CompletableFuture<T> fastForwardUntil(CompletableFuture<T> future) {
+        synchronized (this) {
+            pendingWaits++;
+            update();
+        }
+        future.whenComplete((result, e) -> {
+            synchronized (this) {
+                pendingWaits--;
+                update();
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Waits for a file in drive "C:" (see {@link HatariSession#awaitFile(String)}),
+     * running the emulator with fast-forward meanwhile.
+     *
+     * @param path The path of the file, relative to drive "C:".
+     * @return Future completing with the file.
+     */
+    public CompletableFuture<File> awaitFile(String path) {
+        return fastForwardUntil(session.awaitFile(path));
+    }
+
+    /**
+     * Waits for output of the emulator (see {@link HatariSession#awaitOutput(Pattern)}),
+     * running the emulator with fast-forward meanwhile.
+     *
+     * @param pattern The pattern to look for.
+     * @return Future completing with the matching output line.
+     */
+    public CompletableFuture<String> awaitOutput(Pattern pattern) {
+        return fastForwardUntil(session.awaitOutput(pattern));
+    }
+
+    /**
+     * @return True if the emulator currently runs with fast-forward.
+     */
+    public synchronized boolean isFastForward() {
+        return fastForward;
+    }
+
+    /**
+     * @return The number of times the speed has been switched so far.
+     */
+    public synchronized int getSwitches() {
+        return switches;
+    }
+
+    /**
+     * Stops governing the emulator, and restores the speed configured for its instance.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        listeners.forEach(session::removeLineListener);
+        if (diskCheck != null) {
+            diskCheck.cancel(false);
+        }
+        if (fastForward != baseFastForward && session.isRunning()) {
+            setFastForward(baseFastForward, "governor closed");
+        }
+        closed = true;
+    }
+
+    private void addRule(Pattern pattern, boolean fastForward) {
+        addListener(line -> {
+            if (pattern.matcher(line).find()) {
+                synchronized (this) {
+                    ruleFastForward = fastForward;
+                    update();
+                }
+            }
+        });
+    }
+
+    private void addListener(Consumer<String> listener) {
+        listeners.add(listener);
+        session.addLineListener(listener);
+    }
+
+    private synchronized void diskActivity() {
+        lastDiskActivity = System.currentTimeMillis();
+        update();
+    }
+
+    private synchronized void update() {
+        boolean diskActive = diskQuietMillis >= 0 && lastDiskActivity > 0
+                && System.currentTimeMillis() - lastDiskActivity < diskQuietMillis;
+        boolean target;
+        String reason;
+        if (Boolean.FALSE.equals(ruleFastForward)) {
+            target = false;
+            reason = "real-time rule";
+        } else if (Boolean.TRUE.equals(ruleFastForward)) {
+            target = true;
+            reason = "fast-forward rule";
+        } else if (diskActive) {
+            target = true;
+            reason = "disk activity";
+        } else if (pendingWaits > 0) {
+            target = true;
+            reason = "waiting";
+        } else {
+            target = baseFastForward;
+            reason = "idle";
+        }
+        if (target != fastForward) {
+            setFastForward(target, reason);
+        }
+    }
+
+    private void setFastForward(boolean fastForward, String reason) {
+        if (closed || control == null) {
+            return;
+        }
+        this.fastForward = fastForward;
+        switches++;
+        System.out.println(">> Fast-forward " + (fastForward ? "on" : "off") + " for Hatari instance "
+                + session.getInstance().getLabel() + " (" + reason + ")");
+        control.setFastForward(fastForward);
+    }
+}
@@ -0,0 +1,132 @@
+package games.play4ever.retrodev.hatari;
+
+import games.play4ever.retrodev.util.FileUtil;
+import games.play4ever.retrodev.util.PlatformUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content-addressed store for the TOS images bundled with this wrapper. Every image
+ * is extracted only once, into a file named after the SHA-256 hash of its contents
+ * ("&lt;hash&gt;.img"). Emulator instances use these files directly, so switching
+ * between TOS versions doesn't copy anything, and an instance can never run with a
+ * stale image left over from a previous run with a different TOS version.
+ * <p></p>
+ * The store can be shared by any number of work directories (and JVMs): files are
+ * only ever added under their final name by an atomic rename, and never modified.
+ *
+ * @author Marcel Schoen
+ */
+public class TosStore {
+
+    private final File directory;
+
+    /**
+     * Content hashes of the bundled images, calculated once per store.
+     */
+    private final Map<TOS, String> hashes = new ConcurrentHashMap<>();
+
+    /**
+     * Images whose file in the store has been verified against the hash.
+     */
+    private final Set<TOS> verified = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a TOS store in the given directory (will be created).
+     *
+     * @param directory The store directory.
+     */
+    public TosStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return The default store, shared by all processes of the user in the user's cache directory.
+     */
+    public static TosStore getDefault() {
+        return new TosStore(new File(PlatformUtil.getUserCacheDirectory(), "tos"));
+    }
+
+    /**
+     * @return The store directory.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the image file of the given TOS version, extracting it into the store
+     * if necessary. The file is checked against its hash on first use; a damaged
+     * file is replaced.
+     *
+     * @param tos The TOS version.
+     * @return The image file in the store.
+     */
+    public File getImage(TOS tos) {
+        if (verified.contains(tos)) {
+            return getImageFile(getHash(tos));
+        }
+        try {
+            byte[] image = readResource(tos);
+            String hash = getHash(tos, image);
+            File imageFile = getImageFile(hash);
+            if (!imageFile.isFile() || imageFile.length() != image.length || !hash.equals(FileUtil.sha256(imageFile))) {
+                directory.mkdirs();
+                File tempFile = File.createTempFile(hash, ".tmp", directory);
+                try {
+                    Files.write(tempFile.toPath(), image);
+                    Files.move(tempFile.toPath(), imageFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } finally {
+                    tempFile.delete();
+                }
+                System.out.println(">> Extracted TOS " + tos.name() + " to file: " + imageFile.getAbsolutePath());
+            }
+            verified.add(tos);
+            return imageFile;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to extract TOS " + tos.name() + ": " + e, e);
+        }
+    }
+
+    /**
+     * Returns the SHA-256 hash of the given TOS image, without extracting it.
+     *
+     * @param tos The TOS version.
+     * @return The content hash of the image.
+     */
+    public String getHash(TOS tos) {
+        String hash = hashes.get(tos);
+        if (hash == null) {
+            try {
+                hash = getHash(tos, readResource(tos));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read TOS " + tos.name() + ": " + e, e);
+            }
+        }
+        return hash;
+    }
+
+    private String getHash(TOS tos, byte[] image) {
+        return hashes.computeIfAbsent(tos, t -> FileUtil.sha256(image));
+    }
+
+    private File getImageFile(String hash) {
+        return new File(directory, hash + ".img");
+    }
+
+    private static byte[] readResource(TOS tos) throws IOException {
+        try (InputStream in = TosStore.class.getResourceAsStream("/tos/" + tos.name() + ".img")) {
+            if (in == null) {
+                throw new IOException("TOS image not found: " + tos.name());
+            }
+            return in.readAllBytes();
+        }
+    }
+}
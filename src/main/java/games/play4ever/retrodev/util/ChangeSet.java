@@ -0,0 +1,88 @@
+package games.play4ever.retrodev.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of synchronizing files into a directory: which files were added,
+ * updated or deleted, and how many were already up-to-date. All paths are
+ * relative to the target directory, with "/" as separator.
+ *
+ * @author Marcel Schoen
+ */
+public class ChangeSet {
+
+    private final List<String> added = new ArrayList<>();
+    private final List<String> updated = new ArrayList<>();
+    private final List<String> deleted = new ArrayList<>();
+    private final List<String> synced = new ArrayList<>();
+    private int unchanged = 0;
+
+    synchronized void added(String path) {
+        added.add(path);
+        synced.add(path);
+    }
+
+    synchronized void updated(String path) {
+        updated.add(path);
+        synced.add(path);
+    }
+
+    synchronized void unchanged(String path) {
+        unchanged++;
+        synced.add(path);
+    }
+
+    synchronized void deleted(String path) {
+        deleted.add(path);
+    }
+
+    /**
+     * @return The files which did not exist in the target directory.
+     */
+    public synchronized List<String> getAdded() {
+        return Collections.unmodifiableList(new ArrayList<>(added));
+    }
+
+    /**
+     * @return The files which were different in the target directory and have been replaced.
+     */
+    public synchronized List<String> getUpdated() {
+        return Collections.unmodifiableList(new ArrayList<>(updated));
+    }
+
+    /**
+     * @return The files which were synchronized before, but no longer exist in the source.
+     */
+    public synchronized List<String> getDeleted() {
+        return Collections.unmodifiableList(new ArrayList<>(deleted));
+    }
+
+    /**
+     * @return The number of files which were already up-to-date.
+     */
+    public synchronized int getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return All files which are now in sync with the source (added, updated and unchanged).
+     */
+    public synchronized List<String> getSyncedPaths() {
+        return Collections.unmodifiableList(new ArrayList<>(synced));
+    }
+
+    /**
+     * @return True if no file was added, updated or deleted.
+     */
+    public synchronized boolean isEmpty() {
+        return added.isEmpty() && updated.isEmpty() && deleted.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return added.size() + " added, " + updated.size() + " updated, "
+                + deleted.size() + " deleted, " + unchanged + " unchanged";
+    }
+}
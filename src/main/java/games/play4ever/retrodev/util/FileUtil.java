@@ -1,9 +1,35 @@
 package games.play4ever.retrodev.util;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 /**
  * File handling / I/O utility. Could be replaced by Apache IO commons etc.,
@@ -13,6 +39,17 @@ import java.util.zip.ZipInputStream;
  */
 public class FileUtil {
 
+    /**
+     * Number of files from which on a directory tree is copied in parallel.
+     */
+    private static final int PARALLEL_COPY_THRESHOLD = 16;
+
+    /**
+     * Pool for decompressing zip entries in parallel (kept separate from the
+     * common pool, as the tasks block on file I/O).
+     */
+    private static final ForkJoinPool UNZIP_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
     /**
      * Copies a directory, and all its contents, including subdirectories.
      *
@@ -20,35 +57,79 @@ public class FileUtil {
      * @param targetDirectory The target directory to create.
      */
     public static void copyDirectory(File sourceDirectory, File targetDirectory) {
-        if (sourceDirectory.isDirectory()) {
-            targetDirectory.mkdirs();
-            for (File entry : sourceDirectory.listFiles()) {
-                if (entry.isDirectory()) {
-                    copyDirectory(entry, new File(targetDirectory, entry.getName()));
-                } else {
-                    copyFileTo(entry, new File(targetDirectory, entry.getName()));
+        copyDirectory(sourceDirectory, targetDirectory, false);
+    }
+
+    /**
+     * Copies a directory, and all its contents, including subdirectories. The directory
+     * structure is created first; the files are then copied in parallel for larger trees,
+     * as the time is mostly spent waiting for the file system rather than the CPU.
+     * <p></p>
+     * Optionally, files are hard linked instead of copied, which takes no time and no space
+     * at all (files which cannot be linked, e.g. across file systems, are copied). Only use
+     * links for files which are not modified in the target directory, as the changes would
+     * also show up in the source directory!
+     *
+     * @param sourceDirectory The source directory to copy.
+     * @param targetDirectory The target directory to create.
+     * @param link            True to hard link the files instead of copying them.
+     */
+    public static void copyDirectory(File sourceDirectory, File targetDirectory, boolean link) {
+        if (!sourceDirectory.isDirectory()) {
+            return;
+        }
+        Path sourceRoot = sourceDirectory.toPath();
+        Path targetRoot = targetDirectory.toPath();
+        List<Path> files = new ArrayList<>();
+        try {
+            Files.walkFileTree(sourceRoot, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(targetRoot.resolve(sourceRoot.relativize(dir)));
+                    return FileVisitResult.CONTINUE;
                 }
-            }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    files.add(sourceRoot.relativize(file));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to copy directory '" + sourceDirectory.getAbsolutePath()
+                    + "' to '" + targetDirectory.getAbsolutePath() + "': " + ex, ex);
         }
+        Stream<Path> stream = files.size() >= PARALLEL_COPY_THRESHOLD ? files.parallelStream() : files.stream();
+        stream.forEach(file -> {
+            File source = sourceRoot.resolve(file).toFile();
+            File target = targetRoot.resolve(file).toFile();
+            if (link) {
+                linkOrCopy(source, target);
+            } else {
+                copyFileTo(source, target);
+            }
+        });
+        System.out.println(">> " + (link ? "Linked " : "Copied ") + files.size() + " file(s) from "
+                + sourceDirectory.getAbsolutePath() + " to: " + targetDirectory.getAbsolutePath());
     }
 
     /**
-     * Copies a file.
+     * Copies a file, replacing an existing target file. The data is transferred
+     * by the operating system directly between the files, without passing
+     * through the Java heap.
      *
      * @param source The source file to copy.
      * @param target The target file.
      */
     public static void copyFileTo(File source, File target) {
-        try {
-            InputStream tosImg = new FileInputStream(source);
-            byte[] buffer = new byte[4096];
-            FileOutputStream out = new FileOutputStream(target);
-            int len;
-            while ((len = tosImg.read(buffer)) > 0) {
-                out.write(buffer, 0, len);
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
             }
-            out.close();
-            System.out.println(">> Copied file " + source.getAbsolutePath() + " to: " + target.getAbsolutePath());
         } catch (IOException ex) {
             throw new RuntimeException("Failed to copy file '" + source.getAbsolutePath()
                     + "' to '" + target.getAbsolutePath() + "': " + ex, ex);
@@ -56,84 +137,239 @@ public class FileUtil {
     }
 
     /**
-     * Unpacks the given Zip input stream into the given working directory.
+     * Synchronizes the contents of the source directory (or a single source file) into the
+     * target directory. Only files which are missing or different in the target directory are
+     * copied: files with the same size and modification time are considered unchanged, files with
+     * the same size but another modification time are compared by their hash. Files which were
+     * synchronized before (according to the given paths of the previous run) but no longer exist
+     * in the source are deleted; other files in the target directory are left alone.
      *
-     * @param tempDir
-     * @param zipFile
-     * @throws IOException
+     * @param source          The source directory or file.
+     * @param targetDirectory The target directory.
+     * @param previous        The paths synchronized by the previous run (see {@link ChangeSet#getSyncedPaths()}).
+     * @return The changes made to the target directory.
      */
-    public static void unpackZipXX(File tempDir, InputStream zipFile) throws IOException {
-        File destDir = tempDir;
-        System.out.println("> Unpack Zip file to: " + tempDir.getAbsolutePath());
-        byte[] buffer = new byte[4096];
-        ZipInputStream zis = new ZipInputStream(zipFile);
-        ZipEntry zipEntry = zis.getNextEntry();
-        while (zipEntry != null) {
-            System.out.println(">>> zip entry: " + zipEntry.getName());
-            File newFile = extractFile(destDir, zipEntry);
-            if (zipEntry.isDirectory()) {
-                if (!newFile.isDirectory() && !newFile.mkdirs()) {
-                    throw new IOException("Failed to create directory " + newFile);
+    public static ChangeSet syncDirectory(File source, File targetDirectory, Collection<String> previous) {
+        Map<String, File> sources = new TreeMap<>();
+        if (source.isFile()) {
+            sources.put(source.getName(), source);
+        } else {
+            Path sourceRoot = source.toPath();
+            try (Stream<Path> files = Files.walk(sourceRoot)) {
+                files.filter(Files::isRegularFile).forEach(file ->
+                        sources.put(toSyncPath(sourceRoot.relativize(file)), file.toFile()));
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to read directory '" + source.getAbsolutePath() + "': " + ex, ex);
+            }
+        }
+        ChangeSet changes = new ChangeSet();
+        Stream<Map.Entry<String, File>> stream = sources.size() >= PARALLEL_COPY_THRESHOLD
+                ? sources.entrySet().parallelStream() : sources.entrySet().stream();
+        stream.forEach(entry -> {
+            File sourceFile = entry.getValue();
+            File target = new File(targetDirectory, entry.getKey());
+            try {
+                if (target.isFile() && target.length() == sourceFile.length()
+                        && (target.lastModified() == sourceFile.lastModified() || sha256(target).equals(sha256(sourceFile)))) {
+                    target.setLastModified(sourceFile.lastModified());
+                    changes.unchanged(entry.getKey());
+                    return;
                 }
-            } else {
-                // fix for Windows-created archives
-                File parent = newFile.getParentFile();
-                if (!parent.isDirectory() && !parent.mkdirs()) {
-                    throw new IOException("Failed to create directory " + parent);
+                boolean exists = target.exists();
+                Files.createDirectories(target.getParentFile().toPath());
+                copyFileTo(sourceFile, target);
+                target.setLastModified(sourceFile.lastModified());
+                if (exists) {
+                    changes.updated(entry.getKey());
+                } else {
+                    changes.added(entry.getKey());
                 }
+            } catch (IOException ex) {
+                throw new RuntimeException("Failed to sync file '" + sourceFile.getAbsolutePath()
+                        + "' to '" + target.getAbsolutePath() + "': " + ex, ex);
+            }
+        });
+        deleteStale(targetDirectory, previous, sources.keySet(), changes);
+        return changes;
+    }
 
-                // write file content
-                FileOutputStream fos = new FileOutputStream(newFile);
-                int len;
-                while ((len = zis.read(buffer)) > 0) {
-                    fos.write(buffer, 0, len);
+    /**
+     * Synchronizes the contents of a zip archive into the target directory, just like
+     * {@link #syncDirectory(File, File, Collection)}. Files whose size and modification time
+     * match the archive entry are unchanged; if only the time differs, the checksum of the file
+     * is compared to the checksum recorded in the archive.
+     *
+     * @param zipFile         The zip archive.
+     * @param targetDirectory The target directory.
+     * @param previous        The paths synchronized by the previous run (see {@link ChangeSet#getSyncedPaths()}).
+     * @return The changes made to the target directory.
+     */
+    public static ChangeSet syncZip(File zipFile, File targetDirectory, Collection<String> previous) {
+        ChangeSet changes = new ChangeSet();
+        Set<String> paths = new HashSet<>();
+        List<String> added = new ArrayList<>();
+        List<String> updated = new ArrayList<>();
+        try (ZipFile archive = new ZipFile(zipFile)) {
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
                 }
-                fos.close();
+                paths.add(entry.getName());
+                File target = extractFile(targetDirectory, entry);
+                if (target.isFile() && target.length() == entry.getSize()
+                        && (target.lastModified() == entry.getTime() || crc32(target) == entry.getCrc())) {
+                    setLastModified(target, entry.getTime());
+                    changes.unchanged(entry.getName());
+                    continue;
+                }
+                if (target.exists()) {
+                    updated.add(entry.getName());
+                } else {
+                    added.add(entry.getName());
+                }
+            }
+            List<String> extract = new ArrayList<>(added);
+            extract.addAll(updated);
+            List<File> files = unpackZipEntries(archive, extract, targetDirectory);
+            for (int i = 0; i < files.size(); i++) {
+                setLastModified(files.get(i), archive.getEntry(extract.get(i)).getTime());
             }
-            zipEntry = zis.getNextEntry();
+            added.forEach(changes::added);
+            updated.forEach(changes::updated);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to sync zip file '" + zipFile.getAbsolutePath()
+                    + "' to '" + targetDirectory.getAbsolutePath() + "': " + ex, ex);
         }
-        zis.closeEntry();
-        zis.close();
-        System.out.println(">> Unpacked zip into directory " + destDir.getAbsolutePath());
+        deleteStale(targetDirectory, previous, paths, changes);
+        return changes;
     }
 
-    public static void unpackZip(File tempDir, InputStream zipFileIn) {
-        File destDir = tempDir;
-        System.out.println("> Unpack Zip file to: " + tempDir.getAbsolutePath());
-        ZipInputStream zipIs = null;
-        ZipEntry zEntry = null;
-        try {
-            zipIs = new ZipInputStream(zipFileIn);
-            while ((zEntry = zipIs.getNextEntry()) != null) {
-                System.out.println("> entry: " + zEntry.getName() + " / " + zEntry.isDirectory());
-                if (!zEntry.isDirectory()) {
-                    try {
-                        byte[] tmp = new byte[4 * 1024];
-                        FileOutputStream fos = null;
-                        File outFile = new File(destDir, zEntry.getName());
-                        System.out.println("Extracting file to " + outFile.getAbsolutePath());
-                        fos = new FileOutputStream(outFile);
-                        int size = 0;
-                        while ((size = zipIs.read(tmp)) != -1) {
-                            fos.write(tmp, 0, size);
-                        }
-                        fos.flush();
-                        fos.close();
-                    } catch (Exception ex) {
-                        ex.printStackTrace();
+    private static void deleteStale(File targetDirectory, Collection<String> previous, Set<String> current, ChangeSet changes) {
+        for (String path : previous) {
+            if (!current.contains(path)) {
+                File stale = new File(targetDirectory, path);
+                if (stale.delete()) {
+                    changes.deleted(path);
+                    // Remove folders which are empty now
+                    File parent = stale.getParentFile();
+                    while (!parent.equals(targetDirectory) && parent.delete()) {
+                        parent = parent.getParentFile();
                     }
                 }
             }
-            zipIs.close();
-        } catch (FileNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
         }
     }
 
+    private static void setLastModified(File file, long time) {
+        // Zip entries may have no time
+        if (time >= 0) {
+            file.setLastModified(time);
+        }
+    }
+
+    private static String toSyncPath(Path relativePath) {
+        return relativePath.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Creates a hard link of the source file at the target location. If the
+     * file system does not support hard links, the file is copied instead.
+     * An existing target file is replaced.
+     *
+     * @param source The source file.
+     * @param target The target file.
+     */
+    public static void linkOrCopy(File source, File target) {
+        try {
+            Files.deleteIfExists(target.toPath());
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException ex) {
+            copyFileTo(source, target);
+        }
+    }
+
+    /**
+     * Unpacks a zip archive into the given directory, see {@link #unpackZipEntries(ZipFile, Collection, File)}.
+     *
+     * @param zipFile        The zip archive.
+     * @param destinationDir The target directory (will be created).
+     * @return The number of extracted files.
+     * @throws IOException If the archive could not be read, or any entry could not be extracted.
+     */
+    public static int unpackZip(File zipFile, File destinationDir) throws IOException {
+        try (ZipFile archive = new ZipFile(zipFile)) {
+            List<String> names = new ArrayList<>();
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    Files.createDirectories(extractFile(destinationDir, entry).toPath());
+                } else {
+                    names.add(entry.getName());
+                }
+            }
+            unpackZipEntries(archive, names, destinationDir);
+            System.out.println(">> Unpacked " + names.size() + " file(s) from " + zipFile.getAbsolutePath()
+                    + " into directory: " + destinationDir.getAbsolutePath());
+            return names.size();
+        }
+    }
+
+    /**
+     * Extracts the given files from a zip archive, replacing existing files. The entries are
+     * decompressed in parallel, using all processors. Every entry is checked to be inside the
+     * target directory before anything is written. Extraction stops at the first failure.
+     *
+     * @param archive        The zip archive.
+     * @param names          The names of the entries to extract.
+     * @param destinationDir The target directory.
+     * @return The extracted files, in the order of the given names.
+     * @throws IOException If any entry could not be extracted.
+     */
+    public static List<File> unpackZipEntries(ZipFile archive, Collection<String> names, File destinationDir) throws IOException {
+        List<String> entryNames = new ArrayList<>(names);
+        // Validate all paths first, so a malicious archive doesn't write anything
+        for (String name : entryNames) {
+            ZipEntry entry = archive.getEntry(name);
+            if (entry == null) {
+                throw new IOException("No entry " + name + " in archive " + archive.getName());
+            }
+            extractFile(destinationDir, entry);
+        }
+        if (entryNames.size() < 2) {
+            List<File> files = new ArrayList<>();
+            for (String name : entryNames) {
+                files.add(unpackZipEntry(archive, name, destinationDir));
+            }
+            return files;
+        }
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        File[] files = new File[entryNames.size()];
+        ForkJoinTask<?> task = UNZIP_POOL.submit(() -> IntStream.range(0, files.length).parallel().forEach(index -> {
+            if (failure.get() == null) {
+                try {
+                    files[index] = unpackZipEntry(archive, entryNames.get(index), destinationDir);
+                } catch (IOException ex) {
+                    failure.compareAndSet(null, ex);
+                }
+            }
+        }));
+        try {
+            task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while unpacking " + archive.getName());
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to unpack " + archive.getName() + ": " + ex.getCause(), ex.getCause());
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return Arrays.asList(files);
+    }
+
     /**
      * Extracts an entry from the Hatari emulator zip archive.
      *
@@ -155,6 +391,116 @@ public class FileUtil {
         return destFile;
     }
 
+    /**
+     * Extracts a single file from a zip archive, replacing an existing file.
+     *
+     * @param archive        The zip archive.
+     * @param name           The name of the entry to extract.
+     * @param destinationDir The target directory.
+     * @return The extracted file.
+     * @throws IOException If the entry doesn't exist or could not be extracted.
+     */
+    public static File unpackZipEntry(ZipFile archive, String name, File destinationDir) throws IOException {
+        ZipEntry zipEntry = archive.getEntry(name);
+        if (zipEntry == null) {
+            throw new IOException("No entry " + name + " in archive " + archive.getName());
+        }
+        File destFile = extractFile(destinationDir, zipEntry);
+        // Safe if other threads create the same folders at the same time
+        Files.createDirectories(destFile.getParentFile().toPath());
+        try (InputStream in = archive.getInputStream(zipEntry)) {
+            Files.copy(in, destFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return destFile;
+    }
+
+    /**
+     * Calculates the CRC-32 checksum of the given file (as used in zip archives).
+     *
+     * @param file The file to check.
+     * @return The checksum.
+     * @throws IOException If the file could not be read.
+     */
+    public static long crc32(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, len);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given file.
+     *
+     * @param file The file to hash.
+     * @return The hash as a hex string.
+     * @throws IOException If the file could not be read.
+     */
+    public static String sha256(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return sha256(in);
+        }
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given stream contents. The
+     * stream is read to its end, but not closed.
+     *
+     * @param in The stream to hash.
+     * @return The hash as a hex string.
+     * @throws IOException If the stream could not be read.
+     */
+    public static String sha256(InputStream in) throws IOException {
+        MessageDigest digest = newSha256Digest();
+        byte[] buffer = new byte[64 * 1024];
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, len);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given data.
+     *
+     * @param data The data to hash.
+     * @return The hash as a hex string.
+     */
+    public static String sha256(byte[] data) {
+        return toHex(newSha256Digest().digest(data));
+    }
+
+    /**
+     * Calculates the SHA-256 hash of the given text (UTF-8 encoded).
+     *
+     * @param text The text to hash.
+     * @return The hash as a hex string.
+     */
+    public static String sha256(String text) {
+        return sha256(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported by this JVM", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
     /**
      * Recursive deletion of directory with all contents.
      *
@@ -0,0 +1,201 @@
+package games.play4ever.retrodev.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Describes the files which were installed into a directory from a Zip archive:
+ * the hash of the archive itself, and the size, CRC-32 checksum and modification
+ * time of every file. This allows to check an installation very quickly (comparing
+ * file sizes and modification times only), and to find out exactly which files must
+ * be extracted again when files are missing or damaged.
+ *
+ * @author Marcel Schoen
+ */
+public class InstallManifest {
+
+    private static final String HEADER = "# archive ";
+
+    private final String archiveHash;
+
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    private boolean modified = false;
+
+    /**
+     * Creates an empty manifest.
+     *
+     * @param archiveHash The hash of the archive the files are extracted from.
+     */
+    public InstallManifest(String archiveHash) {
+        this.archiveHash = archiveHash;
+    }
+
+    /**
+     * Creates the manifest of all files in the given Zip archive. The modification
+     * times are not known until the files are installed, see {@link #recordInstalled(String, File)}.
+     *
+     * @param archive     The archive.
+     * @param archiveHash The hash of the archive.
+     * @return The manifest.
+     */
+    public static InstallManifest fromArchive(ZipFile archive, String archiveHash) {
+        InstallManifest manifest = new InstallManifest(archiveHash);
+        Enumeration<? extends ZipEntry> zipEntries = archive.entries();
+        while (zipEntries.hasMoreElements()) {
+            ZipEntry zipEntry = zipEntries.nextElement();
+            if (!zipEntry.isDirectory()) {
+                manifest.entries.put(zipEntry.getName(), new Entry(zipEntry.getSize(), zipEntry.getCrc(), -1));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Reads a manifest file.
+     *
+     * @param file The manifest file.
+     * @return The manifest, or null if the file doesn't exist or cannot be parsed.
+     */
+    public static InstallManifest read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String header = in.readLine();
+            if (header == null || !header.startsWith(HEADER)) {
+                return null;
+            }
+            InstallManifest manifest = new InstallManifest(header.substring(HEADER.length()).trim());
+            String line;
+            while ((line = in.readLine()) != null) {
+                // Format: <size> <crc32> <last modified> <path>
+                String[] fields = line.split(" ", 4);
+                if (fields.length == 4) {
+                    manifest.entries.put(fields[3], new Entry(Long.parseLong(fields[0]),
+                            Long.parseLong(fields[1], 16), Long.parseLong(fields[2])));
+                }
+            }
+            return manifest;
+        } catch (IOException | RuntimeException e) {
+            System.out.println(">> Ignoring unreadable manifest " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes this manifest into the given file (atomically replacing an existing file).
+     *
+     * @param file The manifest file.
+     * @throws IOException If the file could not be written.
+     */
+    public void write(File file) throws IOException {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (Writer out = new BufferedWriter(new FileWriter(tempFile))) {
+            out.write(HEADER + archiveHash + "\n");
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry e = entry.getValue();
+                out.write(e.size + " " + Long.toHexString(e.crc) + " " + e.lastModified + " " + entry.getKey() + "\n");
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return The hash of the archive the files are extracted from.
+     */
+    public String getArchiveHash() {
+        return archiveHash;
+    }
+
+    /**
+     * @return The paths of all files in this manifest.
+     */
+    public List<String> getPaths() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * Removes a file from this manifest, for files which are managed separately.
+     *
+     * @param path The path of the file in the archive.
+     */
+    public void remove(String path) {
+        entries.remove(path);
+    }
+
+    /**
+     * Checks the installed files against this manifest. A file whose size and modification
+     * time match is considered intact without reading it. If only the modification time
+     * differs, the checksum of the file is verified (and the new time recorded if it matches).
+     *
+     * @param directory The installation directory.
+     * @return The paths of all missing or damaged files.
+     * @throws IOException If a file could not be read.
+     */
+    public List<String> findDamagedFiles(File directory) throws IOException {
+        List<String> damaged = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            File file = new File(directory, entry.getKey());
+            Entry expected = entry.getValue();
+            if (!file.isFile() || file.length() != expected.size) {
+                damaged.add(entry.getKey());
+            } else if (file.lastModified() != expected.lastModified) {
+                if (FileUtil.crc32(file) == expected.crc) {
+                    expected.lastModified = file.lastModified();
+                    modified = true;
+                } else {
+                    damaged.add(entry.getKey());
+                }
+            }
+        }
+        return damaged;
+    }
+
+    /**
+     * @return True if recorded modification times were changed since the manifest was read.
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Records the modification time of a file which has just been installed.
+     *
+     * @param path The path of the file in the archive.
+     * @param file The installed file.
+     */
+    public void recordInstalled(String path, File file) {
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            entry.lastModified = file.lastModified();
+            modified = true;
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long crc;
+        private long lastModified;
+
+        private Entry(long size, long crc, long lastModified) {
+            this.size = size;
+            this.crc = crc;
+            this.lastModified = lastModified;
+        }
+    }
+}
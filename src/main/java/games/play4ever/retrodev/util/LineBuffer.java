@@ -0,0 +1,90 @@
+package games.play4ever.retrodev.util;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded in-memory buffer for lines of text, e.g. the output of a process.
+ * Once the buffer is full, the oldest line is dropped for every new line (ring buffer).
+ * This allows to keep the latest output of a process around, without filling up
+ * the disk or the memory when it runs for a long time.
+ *
+ * @author Marcel Schoen
+ */
+public class LineBuffer {
+
+    private final String[] lines;
+    private int start = 0;
+    private int size = 0;
+    private long droppedLines = 0;
+
+    /**
+     * Creates a line buffer.
+     *
+     * @param capacity The maximum number of lines to keep.
+     */
+    public LineBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+        }
+        this.lines = new String[capacity];
+    }
+
+    /**
+     * Adds a line to the buffer, dropping the oldest line if the buffer is full.
+     *
+     * @param line The line to add.
+     */
+    public synchronized void add(String line) {
+        if (size < lines.length) {
+            lines[(start + size) % lines.length] = line;
+            size++;
+        } else {
+            lines[start] = line;
+            start = (start + 1) % lines.length;
+            droppedLines++;
+        }
+    }
+
+    /**
+     * @return A copy of the lines currently in the buffer, oldest line first.
+     */
+    public synchronized List<String> getLines() {
+        List<String> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(lines[(start + i) % lines.length]);
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of lines which were dropped because the buffer was full.
+     */
+    public synchronized long getDroppedLines() {
+        return droppedLines;
+    }
+
+    /**
+     * Writes the lines currently in the buffer into the given file.
+     *
+     * @param file The file to write (will be overwritten).
+     * @throws IOException If the file could not be written.
+     */
+    public void writeTo(File file) throws IOException {
+        long dropped = getDroppedLines();
+        try (Writer out = new BufferedWriter(new FileWriter(file))) {
+            if (dropped > 0) {
+                out.write("[... " + dropped + " earlier lines dropped ...]\n");
+            }
+            for (String line : getLines()) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+    }
+}
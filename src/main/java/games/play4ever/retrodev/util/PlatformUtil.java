@@ -1,5 +1,6 @@
 package games.play4ever.retrodev.util;
 
+import java.io.File;
 import java.util.Locale;
 
 /**
@@ -41,6 +42,31 @@ public class PlatformUtil {
         return detectedOS;
     }
 
+    /**
+     * Returns the directory for cached files of this wrapper which can be shared by all
+     * processes of the current user, following the conventions of the platform
+     * (e.g. "~/.cache" or "$XDG_CACHE_HOME" on Linux, "%LOCALAPPDATA%" on Windows).
+     *
+     * @return The cache directory (may not exist yet).
+     */
+    public static File getUserCacheDirectory() {
+        String home = System.getProperty("user.home");
+        File base;
+        switch (getOperatingSystemType()) {
+            case Windows:
+                String localAppData = System.getenv("LOCALAPPDATA");
+                base = localAppData != null ? new File(localAppData) : new File(home, "AppData/Local");
+                break;
+            case MacOS:
+                base = new File(home, "Library/Caches");
+                break;
+            default:
+                String xdgCache = System.getenv("XDG_CACHE_HOME");
+                base = xdgCache != null && !xdgCache.isEmpty() ? new File(xdgCache) : new File(home, ".cache");
+        }
+        return new File(base, "java-hatari-wrapper");
+    }
+
     /**
      * types of Operating Systems
      */